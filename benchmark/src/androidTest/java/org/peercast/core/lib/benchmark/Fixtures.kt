@@ -0,0 +1,63 @@
+package org.peercast.core.lib.benchmark
+
+/**
+ * ベンチマーク用のレスポンス。
+ * PeerCast-YTの実際のレスポンスと同じ形で、毎回同じ内容を生成する。
+ */
+internal object Fixtures {
+
+    private fun rpcResult(result: String) = """{"jsonrpc":"2.0","id":1,"result":$result}"""
+
+    /**getYPChannels: 2,000件*/
+    val ypChannels: String by lazy {
+        rpcResult((0 until 2_000).joinToString(",", "[", "]") { i ->
+            """{"yellowPage":"YP${i % 4}","name":"チャンネル $i","channelId":"${
+                "%032X".format(i)
+            }","tracker":"192.168.${i % 256}.${i / 256}:7144","contactUrl":"http://example.com/bbs/$i",""" +
+                    """"genre":"ゲーム","description":"説明 $i","comment":"コメント $i","bitrate":${500 + i % 1500},""" +
+                    """"contentType":"FLV","trackTitle":"","album":"","creator":"","trackUrl":"",""" +
+                    """"listeners":${i % 100},"relays":${i % 10},"uptime":${i * 60}}"""
+        })
+    }
+
+    private fun relayNode(depth: Int, maxDepth: Int): String {
+        //片方は葉、もう片方は次の階層へ
+        val children = if (depth < maxDepth)
+            "[${relayNode(depth + 1, maxDepth)},${relayLeaf(depth)}]"
+        else
+            "[]"
+        return """{"sessionId":"${"%032X".format(depth)}","address":"10.0.${depth / 256}.${depth % 256}",""" +
+                """"port":7144,"isFirewalled":false,"localRelays":1,"localDirects":0,""" +
+                """"isTracker":${depth == 0},"isRelayFull":false,"isDirectFull":false,""" +
+                """"isReceiving":true,"isControlFull":false,"children":$children}"""
+    }
+
+    private fun relayLeaf(depth: Int): String {
+        return """{"sessionId":"${"%032X".format(depth + 0x10000)}","address":"10.1.0.${depth % 256}",""" +
+                """"port":7144,"isFirewalled":true,"localRelays":0,"localDirects":1,"children":[]}"""
+    }
+
+    /**getChannelRelayTree: 深さ64*/
+    val channelRelayTree: String by lazy {
+        rpcResult("[${relayNode(0, 64)}]")
+    }
+
+    /**getLog: 10,000行*/
+    val log: String by lazy {
+        rpcResult((0 until 10_000).joinToString(",", """[{"from":0,"lines":10000,"log":[""", "]}]") { i ->
+            """"2021/01/01 00:${"%02d".format(i / 60 % 60)}:${"%02d".format(i % 60)} [DEBUG] Servent $i: relay packet""""
+        })
+    }
+
+    /**getStatus: EndPointの配列形式と文字列形式を含む*/
+    val status: String = rpcResult(
+        """{"uptime":3600,"isFirewalled":false,""" +
+                """"globalRelayEndPoint":["203.0.113.1",7144],"globalDirectEndPoint":["203.0.113.1",7144],""" +
+                """"localRelayEndPoint":"192.168.0.2:7144","localDirectEndPoint":"192.168.0.2:7144"}"""
+    )
+
+    /**PeerCastService.notifyChannelに渡されるChannelInfo*/
+    val channelInfo: String =
+        """{"name":"チャンネル","url":"http://example.com/bbs/","genre":"ゲーム","desc":"説明",""" +
+                """"comment":"コメント","bitrate":1000,"contentType":"FLV","mimeType":"video/x-flv"}"""
+}
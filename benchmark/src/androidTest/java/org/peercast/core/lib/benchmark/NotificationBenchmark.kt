@@ -0,0 +1,45 @@
+package org.peercast.core.lib.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.json.Json
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.peercast.core.lib.internal.NotificationUtils
+import org.peercast.core.lib.rpc.ChannelInfo
+
+/**
+ * チャンネル更新通知 1,000件分のデコード。
+ * legacy_ は以前の実装(呼び出しごとにJsonを作成)で、比較用。
+ */
+@RunWith(AndroidJUnit4::class)
+class NotificationBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    @Test
+    fun jsonToChannelInfo_burst1000() {
+        benchmarkRule.measureRepeated {
+            repeat(1_000) {
+                NotificationUtils.jsonToChannelInfo(Fixtures.channelInfo)
+            }
+        }
+    }
+
+    @Test
+    fun legacy_jsonToChannelInfo_burst1000() {
+        benchmarkRule.measureRepeated {
+            repeat(1_000) {
+                val format = Json {
+                    isLenient = true
+                    ignoreUnknownKeys = true
+                    coerceInputValues = true
+                }
+                format.decodeFromString<ChannelInfo>(Fixtures.channelInfo)
+            }
+        }
+    }
+}
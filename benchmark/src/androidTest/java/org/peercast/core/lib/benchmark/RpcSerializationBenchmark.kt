@@ -0,0 +1,73 @@
+package org.peercast.core.lib.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.coroutines.runBlocking
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.peercast.core.lib.PeerCastRpcClient
+import org.peercast.core.lib.internal.NotificationUtils
+import org.peercast.core.lib.test.MockJsonRpcConnection
+
+/**
+ * リクエストの作成 (buildRpcRequest*) からレスポンスのデコード (decodeRpcResponse) まで。
+ * 時間とアロケーション数が出力される。
+ */
+@RunWith(AndroidJUnit4::class)
+class RpcSerializationBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private fun client(response: String) = PeerCastRpcClient(MockJsonRpcConnection(response))
+
+    @Test
+    fun getYPChannels_2000() {
+        val client = client(Fixtures.ypChannels)
+        benchmarkRule.measureRepeated {
+            runBlocking { client.getYPChannels() }
+        }
+    }
+
+    @Test
+    fun getChannelRelayTree_depth64() {
+        val client = client(Fixtures.channelRelayTree)
+        benchmarkRule.measureRepeated {
+            runBlocking { client.getChannelRelayTree("0") }
+        }
+    }
+
+    @Test
+    fun getLog_10000() {
+        val client = client(Fixtures.log)
+        benchmarkRule.measureRepeated {
+            runBlocking { client.getLog() }
+        }
+    }
+
+    /**EndPointSerializer (配列形式と文字列形式)*/
+    @Test
+    fun getStatus_endPoints() {
+        val client = client(Fixtures.status)
+        benchmarkRule.measureRepeated {
+            runBlocking { client.getStatus() }
+        }
+    }
+
+    /**ほぼbuildRpcRequestArrayParamsのコスト*/
+    @Test
+    fun stopChannelConnection_request() {
+        val client = client("""{"jsonrpc":"2.0","id":1,"result":true}""")
+        benchmarkRule.measureRepeated {
+            runBlocking { client.stopChannelConnection("0123456789ABCDEF0123456789ABCDEF", 1) }
+        }
+    }
+
+    @Test
+    fun jsonToChannelInfo() {
+        benchmarkRule.measureRepeated {
+            NotificationUtils.jsonToChannelInfo(Fixtures.channelInfo)
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.peercast.core.common
+
+import android.content.res.AssetManager
+import timber.log.Timber
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import java.util.zip.ZipException
+
+/**
+ * APK内のzipを展開せずに読む。
+ *
+ * zip自体が無圧縮でAPKに格納されている(noCompress)必要がある。
+ * APKの該当部分をmmapし、セントラルディレクトリから作ったインデックスで
+ * エントリを探す。エントリも無圧縮(zip -0)ならコピーせずにそのまま読める。
+ *
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+class AssetZip private constructor(
+    private val buf: ByteBuffer,
+    private val index: Map<String, Entry>,
+) {
+    class Entry internal constructor(
+        val name: String,
+        val method: Int,
+        val crc: Long,
+        val compressedSize: Int,
+        val size: Int,
+        internal val localHeaderOffset: Int,
+    ) {
+        val isStored: Boolean get() = method == METHOD_STORED
+    }
+
+    val entries: Collection<Entry> get() = index.values
+
+    operator fun get(name: String): Entry? = index[name]
+
+    /**@return 見つからなければnull*/
+    fun open(name: String): InputStream? = index[name]?.let { open(it) }
+
+    /**使い終わったら必ずclose()すること。*/
+    fun open(e: Entry): InputStream {
+        val data = slice(e)
+        return when (e.method) {
+            METHOD_STORED -> ByteBufferInputStream(data)
+            METHOD_DEFLATED -> OwnedInflaterInputStream(ByteBufferInputStream(data))
+
+            else -> throw ZipException("unsupported method ${e.method}: ${e.name}")
+        }
+    }
+
+    private fun slice(e: Entry): ByteBuffer {
+        val b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        val p = e.localHeaderOffset
+        if (b.getInt(p) != LOCAL_HEADER_SIGNATURE)
+            throw ZipException("invalid local header: ${e.name}")
+        val start = p + 30 + b.getShort(p + 26).toUShort().toInt() +
+                b.getShort(p + 28).toUShort().toInt()
+        b.limit(start + e.compressedSize)
+        b.position(start)
+        return b.slice()
+    }
+
+    /**
+     * close()でInflaterのネイティブのメモリを解放する。
+     * (InflaterInputStreamは、渡されたInflaterをend()しない)
+     */
+    private class OwnedInflaterInputStream(ins: InputStream) :
+        InflaterInputStream(ins, Inflater(true)) {
+        private var isClosed = false
+
+        override fun close() {
+            if (isClosed)
+                return
+            isClosed = true
+            try {
+                super.close()
+            } finally {
+                inf.end()
+            }
+        }
+    }
+
+    private class ByteBufferInputStream(private val b: ByteBuffer) : InputStream() {
+        override fun read(): Int {
+            return if (b.hasRemaining()) b.get().toInt() and 0xff else -1
+        }
+
+        override fun read(dst: ByteArray, off: Int, len: Int): Int {
+            if (len == 0)
+                return 0
+            if (!b.hasRemaining())
+                return -1
+            val n = minOf(len, b.remaining())
+            b.get(dst, off, n)
+            return n
+        }
+
+        override fun available() = b.remaining()
+
+        override fun skip(n: Long): Long {
+            val k = minOf(n, b.remaining().toLong()).coerceAtLeast(0).toInt()
+            b.position(b.position() + k)
+            return k.toLong()
+        }
+    }
+
+    companion object {
+        const val METHOD_STORED = 0
+        const val METHOD_DEFLATED = 8
+
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50
+
+        /**
+         * assetsのzipを開く。
+         * @return 圧縮されてAPKに格納されているなど、mmapできなければnull
+         */
+        fun open(am: AssetManager, fileName: String): AssetZip? {
+            return try {
+                am.openFd(fileName).use { afd ->
+                    //fdはafdが閉じる。mmapは閉じた後も有効
+                    val buf = FileInputStream(afd.fileDescriptor).channel.map(
+                        FileChannel.MapMode.READ_ONLY, afd.startOffset, afd.length
+                    )
+                    AssetZip(buf, readIndex(buf.order(ByteOrder.LITTLE_ENDIAN)))
+                }
+            } catch (e: IOException) {
+                //FileNotFoundException: "This file can not be opened as a file descriptor; it is probably compressed"
+                Timber.w(e, "AssetZip: $fileName")
+                null
+            }
+        }
+
+        private fun readIndex(b: ByteBuffer): Map<String, Entry> {
+            //コメントは最大65535バイト
+            val end = (b.limit() - 22 downTo maxOf(0, b.limit() - 22 - 0xffff)).firstOrNull {
+                b.getInt(it) == END_OF_CENTRAL_DIR_SIGNATURE
+            } ?: throw ZipException("end of central directory not found")
+
+            val count = b.getShort(end + 10).toUShort().toInt()
+            var p = b.getInt(end + 16)
+            val index = HashMap<String, Entry>(count * 2)
+            repeat(count) {
+                if (b.getInt(p) != CENTRAL_HEADER_SIGNATURE)
+                    throw ZipException("invalid central directory header")
+                val nameLen = b.getShort(p + 28).toUShort().toInt()
+                val extraLen = b.getShort(p + 30).toUShort().toInt()
+                val commentLen = b.getShort(p + 32).toUShort().toInt()
+                val name = ByteArray(nameLen).also {
+                    b.duplicate().apply { position(p + 46) }.get(it)
+                }.toString(Charsets.UTF_8)
+
+                if (!name.endsWith("/")) {
+                    index[name] = Entry(
+                        name,
+                        b.getShort(p + 10).toUShort().toInt(),
+                        b.getInt(p + 16).toUInt().toLong(),
+                        b.getInt(p + 20),
+                        b.getInt(p + 24),
+                        b.getInt(p + 42),
+                    )
+                }
+                p += 46 + nameLen + extraLen + commentLen
+            }
+            return index
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.peercast.core.common.upnp
 
 interface UpnpManager {
-    /**@throws java.io.IOException*/
-    suspend fun addPort(port: Int)
+    /**
+     * @return 割り当てられたリース期間の残り(秒)。0なら無期限
+     * @throws java.io.IOException
+     * */
+    suspend fun addPort(port: Int): Int
 
     /**@throws java.io.IOException*/
     suspend fun removePort(port: Int)
@@ -0,0 +1,230 @@
+package org.peercast.core
+
+import android.os.IBinder
+import android.os.RemoteException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import org.peercast.core.lib.internal.NotifyEvent
+import org.peercast.core.lib.notify.NotifyChannelType
+import org.peercast.core.lib.rpc.ChannelInfo
+import timber.log.Timber
+import java.io.PrintWriter
+
+/**
+ * INotificationCallbackへの通知を、クライアントごとのキューからメインスレッド以外で送る。
+ *
+ * - 溜まっている通知は1回のトランザクション(onNotifyBatch)でまとめて送る。(v5のクライアント)
+ * - まだ送っていない同じチャンネルのUPDATEは、新しいもので置き換える。
+ * - キューが一杯なら古いUPDATE、次に古いメッセージから捨てる。
+ * - [markReady]の後、v5のクライアントに起動完了(KIND_READY)を1回送る。後から登録したクライアントにも送る。
+ *
+ * 遅いクライアントがあっても、他のクライアントへの通知は待たされない。
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+internal class NotificationCallbackDispatcher(
+    private val scope: CoroutineScope,
+    private val capacity: Int = 64,
+) {
+    private class Pending(val event: NotifyEvent, val jsonChannelInfo: String?) {
+        val isUpdate: Boolean
+            get() = event.kind == NotifyEvent.KIND_CHANNEL &&
+                    event.notifyType == NotifyChannelType.Update.nativeValue
+
+        val isReady: Boolean
+            get() = event.kind == NotifyEvent.KIND_READY
+    }
+
+    /**@param apiVersion 登録に使われたメソッドのバージョン*/
+    private class Client(val callback: INotificationCallback, val apiVersion: Int) {
+        val queue = ArrayDeque<Pending>()
+        var isSending = false
+
+        var maxDepth = 0
+        var merged = 0L
+        var dropped = 0L
+        var delivered = 0L
+        var transactions = 0L
+    }
+
+    //clientsと、各Clientの中身、isReadyはこのロックで守る
+    private val clients = ArrayList<Client>()
+    private var isReady = false
+
+    fun register(callback: INotificationCallback, apiVersion: Int) {
+        synchronized(clients) {
+            val c = Client(callback, apiVersion)
+            clients.add(c)
+            if (isReady && apiVersion >= 5)
+                post(c, READY)
+        }
+    }
+
+    /**PeerCastがRPCを受け付けられるようになった。*/
+    fun markReady() {
+        synchronized(clients) {
+            if (isReady)
+                return
+            isReady = true
+            clients.filter { it.apiVersion >= 5 }.forEach { post(it, READY) }
+        }
+    }
+
+    fun unregister(callback: INotificationCallback) {
+        val binder = callback.asBinder()
+        synchronized(clients) {
+            clients.removeAll { it.callback.asBinder() == binder }
+        }
+    }
+
+    fun dispatchChannel(
+        notifyType: Int, chId: String,
+        chInfo: ChannelInfo, jsonChannelInfo: String,
+    ) {
+        dispatch(
+            Pending(
+                NotifyEvent(NotifyEvent.KIND_CHANNEL, notifyType, chId, chInfo),
+                jsonChannelInfo
+            )
+        )
+    }
+
+    fun dispatchMessage(notifyType: Int, message: String) {
+        dispatch(
+            Pending(NotifyEvent(NotifyEvent.KIND_MESSAGE, notifyType, message = message), null)
+        )
+    }
+
+    /**クライアントごとのキューの深さ*/
+    val queueDepths: Map<IBinder, Int>
+        get() = synchronized(clients) {
+            clients.associate { it.callback.asBinder() to it.queue.size }
+        }
+
+    fun dump(pw: PrintWriter) {
+        synchronized(clients) {
+            pw.println("NotificationCallbackDispatcher: ${clients.size} clients (capacity=$capacity)")
+            clients.forEachIndexed { i, c ->
+                pw.println(
+                    "  #$i v${c.apiVersion} depth=${c.queue.size} maxDepth=${c.maxDepth} " +
+                            "merged=${c.merged} dropped=${c.dropped} " +
+                            "delivered=${c.delivered} transactions=${c.transactions}"
+                )
+            }
+        }
+    }
+
+    private fun dispatch(p: Pending) {
+        synchronized(clients) {
+            clients.forEach { c -> post(c, p) }
+        }
+    }
+
+    //clientsのロック内で
+    private fun post(c: Client, p: Pending) {
+        enqueue(c, p)
+        if (!c.isSending) {
+            c.isSending = true
+            scope.launch(Dispatchers.IO) { drain(c) }
+        }
+    }
+
+    private fun enqueue(c: Client, p: Pending) {
+        val q = c.queue
+        if (p.isUpdate) {
+            //同じチャンネルの最後の通知がUPDATEなら置き換える
+            val i = q.indexOfLast {
+                it.event.kind == NotifyEvent.KIND_CHANNEL && it.event.channelId == p.event.channelId
+            }
+            if (i >= 0 && q[i].isUpdate) {
+                q[i] = p
+                c.merged++
+                return
+            }
+        }
+        if (q.size >= capacity) {
+            val i = q.indexOfFirst { it.isUpdate }.takeIf { it >= 0 }
+                ?: q.indexOfFirst { it.event.kind == NotifyEvent.KIND_MESSAGE }.takeIf { it >= 0 }
+                ?: q.indexOfFirst { !it.isReady }.takeIf { it >= 0 }
+                ?: 0
+            q.removeAt(i)
+            if (c.dropped++ == 0L)
+                Timber.w("queue is full: drop notification (v${c.apiVersion})")
+        }
+        q.addLast(p)
+        c.maxDepth = maxOf(c.maxDepth, q.size)
+    }
+
+    private fun drain(c: Client) {
+        //正常に空になったとき以外は、このクライアントを外す。(isSendingが残ると二度と送られない)
+        var isDrained = false
+        try {
+            while (true) {
+                val batch = synchronized(clients) {
+                    if (c.queue.isEmpty()) {
+                        c.isSending = false
+                        isDrained = true
+                        return
+                    }
+                    List(minOf(c.queue.size, MAX_BATCH_SIZE)) { c.queue.removeFirst() }
+                }
+
+                val nTransactions = try {
+                    send(c, batch)
+                } catch (e: Exception) {
+                    when (e) {
+                        is RemoteException,
+                        is SecurityException,
+                        -> Timber.w(e, "remove callback")
+
+                        else -> Timber.e(e, "remove faulty callback")
+                    }
+                    return
+                }
+
+                synchronized(clients) {
+                    c.delivered += batch.size
+                    c.transactions += nTransactions
+                }
+            }
+        } finally {
+            if (!isDrained) {
+                synchronized(clients) {
+                    clients.remove(c)
+                    c.queue.clear()
+                    c.isSending = false
+                }
+            }
+        }
+    }
+
+    /**@return トランザクションの回数*/
+    private fun send(c: Client, batch: List<Pending>): Int {
+        //KIND_READYはonNotifyBatchでしか送れない
+        if (c.apiVersion >= 5 && (batch.size > 1 || batch[0].isReady)) {
+            c.callback.onNotifyBatch(batch.map { it.event })
+            return 1
+        }
+        batch.forEach { p ->
+            val e = p.event
+            when {
+                e.kind == NotifyEvent.KIND_MESSAGE ->
+                    c.callback.onNotifyMessage(e.notifyType, e.message)
+
+                c.apiVersion >= 5 ->
+                    c.callback.onNotifyChannel5(e.notifyType, e.channelId, e.channelInfo)
+
+                else ->
+                    c.callback.onNotifyChannel(e.notifyType, e.channelId, p.jsonChannelInfo)
+            }
+        }
+        return batch.size
+    }
+
+    companion object {
+        //1回のトランザクションで送る最大の件数
+        private const val MAX_BATCH_SIZE = 32
+
+        private val READY = Pending(NotifyEvent(NotifyEvent.KIND_READY, 0), null)
+    }
+}
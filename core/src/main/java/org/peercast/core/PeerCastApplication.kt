@@ -10,6 +10,9 @@ import org.peercast.core.common.commonModule
 import org.peercast.core.common.upnp.UpnpManager
 import org.peercast.core.ui.uiModule
 import org.peercast.core.upnp.MiniUpnpManager
+import org.peercast.core.upnp.NatPmpManager
+import org.peercast.core.upnp.RacingUpnpManager
+import org.peercast.core.util.NetworkStateCoordinator
 import timber.log.Timber
 
 
@@ -28,7 +31,15 @@ class PeerCastApplication : Application() {
         startKoin {
             androidContext(this@PeerCastApplication)
             modules(listOf(commonModule, uiModule, module {
-                single<UpnpManager> { MiniUpnpManager(get()) }
+                single { NetworkStateCoordinator(get()) }
+                single<UpnpManager> {
+                    RacingUpnpManager(
+                        get(), mapOf(
+                            "UPnP" to MiniUpnpManager(get(), get()),
+                            "PCP/NAT-PMP" to NatPmpManager(get()),
+                        )
+                    )
+                }
             }))
         }
     }
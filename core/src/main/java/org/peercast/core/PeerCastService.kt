@@ -9,12 +9,9 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
-import android.net.ConnectivityManager
-import android.net.Network
 import android.os.*
 import android.widget.Toast
 import androidx.annotation.BinderThread
-import androidx.annotation.MainThread
 import androidx.core.content.ContextCompat
 import androidx.lifecycle.LifecycleService
 import androidx.lifecycle.lifecycleScope
@@ -22,28 +19,48 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import org.koin.android.ext.android.inject
 import org.peercast.core.common.AppPreferences
-import org.peercast.core.lib.PeerCastRpcClient
 import org.peercast.core.lib.internal.NotificationUtils
 import org.peercast.core.lib.internal.ServiceIntents
 import org.peercast.core.lib.notify.NotifyChannelType
-import org.peercast.core.lib.rpc.io.JsonRpcConnection
-import org.peercast.core.upnp.MiniUpnpManager
+import org.peercast.core.upnp.MiniUpnp
 import org.peercast.core.upnp.UpnpWorker
+import org.peercast.core.util.NetworkStateCoordinator
 import org.peercast.core.util.NotificationHelper
-import org.peercast.core.util.unzipFile
+import org.peercast.core.util.unzipChangedEntries
 import timber.log.Timber
 import java.io.File
+import java.io.FileDescriptor
 import java.io.IOException
+import java.io.PrintWriter
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.Executors
 
 class PeerCastService : LifecycleService() {
 
     private lateinit var notificationHelper: NotificationHelper
     private val appPrefs by inject<AppPreferences>()
-    private lateinit var connMan: ConnectivityManager
-    private val networkCallback = object : ConnectivityManager.NetworkCallback() {
-        override fun onAvailable(network: Network) {
-            val cap = connMan.getNetworkCapabilities(network)
-            Timber.d("onAvailable: $network, $cap")
+    private val networkState by inject<NetworkStateCoordinator>()
+    //以下はnativeExecutorのスレッドからのみ触る
+    private var isQuit = false
+    //最後に接続していたときの状態。切断中もそのまま残す
+    private var lastConnected: NetworkStateCoordinator.Snapshot? = null
+
+    //nativeQuitの後に再アナウンスやポート開放をしないよう、nativeExecutorで順に実行する
+    private val networkListener = NetworkStateCoordinator.Listener { _, new ->
+        //IPアドレスが付くまでは何もしない
+        if (new == null || new.addresses.isEmpty())
+            return@Listener
+        nativeExecutor.execute {
+            //登録を解除する直前に通知されたもの
+            if (isQuit)
+                return@execute
+            //起動時(最初の通知)は不要。切断をはさんでも、アドレスかゲートウェイが変われば再アナウンスする
+            val prev = lastConnected
+            lastConnected = new
+            if (prev != null && (prev.addresses != new.addresses || prev.gateway != new.gateway))
+                nativeOnNetworkChanged()
             if (appPrefs.isUPnPEnabled)
                 UpnpWorker.openPort(this@PeerCastService, nativeGetPort())
         }
@@ -52,9 +69,6 @@ class PeerCastService : LifecycleService() {
     override fun onCreate() {
         super.onCreate()
 
-        unzipHtmlDir()
-
-        nativeStart(filesDir.absolutePath)
         notificationHelper = NotificationHelper(this)
 
         ContextCompat.registerReceiver(this, commandReceiver, IntentFilter().also {
@@ -63,8 +77,48 @@ class PeerCastService : LifecycleService() {
             it.addAction(ACTION_CLEAR_CACHE)
         }, ContextCompat.RECEIVER_NOT_EXPORTED)
 
-        connMan = getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
-        connMan.registerNetworkCallback(MiniUpnpManager.REQ_TYPE_WIFI_ETHERNET, networkCallback)
+        //ANRを避けるため、解凍と起動はメインスレッドで行わない
+        nativeExecutor.execute {
+            unzipHtmlDir()
+            nativeSetThreadPriorities(loadThreadPriorityRules())
+            nativeStart(filesDir.absolutePath, CHANNEL_NOTIFY_INTERVAL)
+            if (!waitForListening(nativeGetPort()))
+                Timber.w("server socket is not listening: port=${nativeGetPort()}")
+            //v5のクライアントへ通知する
+            notifyDispatcher.markReady()
+
+            //ポートが決まってからUPnPで開ける
+            networkState.addListener(networkListener)
+        }
+    }
+
+    /**res/values/thread_priorities.xmlの規則を "SERVENT=-8;YP=10" の形にする。*/
+    private fun loadThreadPriorityRules(): String {
+        return resources.getStringArray(R.array.thread_priority_rules).mapNotNull { item ->
+            val a = item.split('=', limit = 2).map { it.trim() }
+            val priority = a.getOrNull(1)?.let { THREAD_PRIORITIES[it] ?: it.toIntOrNull() }
+            if (priority == null) {
+                Timber.w("invalid thread priority rule: $item")
+                return@mapNotNull null
+            }
+            "${a[0]}=$priority"
+        }.joinToString(";")
+    }
+
+    /**サーバーのソケットに接続できるまで待つ。*/
+    private fun waitForListening(port: Int): Boolean {
+        val deadline = SystemClock.elapsedRealtime() + LISTEN_TIMEOUT
+        while (port > 0 && SystemClock.elapsedRealtime() < deadline) {
+            try {
+                Socket().use {
+                    it.connect(InetSocketAddress(InetAddress.getLoopbackAddress(), port), 100)
+                }
+                return true
+            } catch (e: IOException) {
+                Thread.sleep(20)
+            }
+        }
+        return false
     }
 
     private fun unzipHtmlDir() {
@@ -73,7 +127,7 @@ class PeerCastService : LifecycleService() {
         if (d.exists())
             return
         try {
-            assets.unzipFile("peca-yt.zip", filesDir)
+            assets.unzipChangedEntries("peca-yt.zip", filesDir)
             d.mkdir()
         } catch (e: IOException) {
             Timber.e(e, "html-dir install failed.")
@@ -85,81 +139,68 @@ class PeerCastService : LifecycleService() {
      */
     private val commandReceiver = object : BroadcastReceiver() {
         override fun onReceive(c: Context, intent: Intent) {
-            fun runRpc(f: suspend PeerCastRpcClient.(String) -> Unit) = lifecycleScope.launch {
-                val conn = JsonRpcConnection(port = nativeGetPort())
-                val client = PeerCastRpcClient(conn)
-                runCatching {
-                    intent.getStringExtra(EX_CHANNEL_ID)?.let {
-                        client.f(it)
-                    }
-                }.onFailure(Timber::e)
-            }
+            val chId = intent.getStringExtra(EX_CHANNEL_ID)
 
-            when (intent.action) {
-                ACTION_BUMP_CHANNEL -> runRpc { bumpChannel(it) }
-                ACTION_STOP_CHANNEL -> runRpc { stopChannel(it) }
-                ACTION_CLEAR_CACHE -> nativeClearCache()
+            val command = when (intent.action) {
+                ACTION_BUMP_CHANNEL -> Runnable { chId?.let { nativeBumpChannel(it) } }
+                ACTION_STOP_CHANNEL -> Runnable { chId?.let { nativeStopChannel(it) } }
+                ACTION_CLEAR_CACHE -> Runnable { nativeClearCache() }
                 else -> throw IllegalArgumentException("invalid action: $intent")
             }
+            //メインスレッドでネイティブを呼ばない。(onDestroyで登録を解除するので、nativeQuitより先に実行される)
+            nativeExecutor.execute(command)
         }
     }
 
+    private val notifyDispatcher = NotificationCallbackDispatcher(lifecycleScope)
+
     private val aidlBinder = object : IPeerCastService.Stub() {
         override fun getVersion() = BuildConfig.VERSION_CODE
 
-        var callbacks = ArrayList<INotificationCallback>()
+        override fun getApiVersion() = ServiceIntents.SERVICE_API_VERSION
 
         @BinderThread
         override fun registerNotificationCallback(callback: INotificationCallback) {
-            lifecycleScope.launch {
-                callbacks.add(callback)
-            }
+            notifyDispatcher.register(callback, 4)
         }
 
         @BinderThread
-        override fun unregisterNotificationCallback(callback: INotificationCallback) {
-            lifecycleScope.launch {
-                callbacks.remove(callback)
-            }
+        override fun registerNotificationCallback5(callback: INotificationCallback) {
+            notifyDispatcher.register(callback, 5)
         }
 
-        @MainThread
-        fun fireNotifyChannel(notifyType: Int, chId: String, jsonChannelInfo: String) {
-            fireEvent {
-                it.onNotifyChannel(notifyType, chId, jsonChannelInfo)
-            }
+        @BinderThread
+        override fun unregisterNotificationCallback(callback: INotificationCallback) {
+            notifyDispatcher.unregister(callback)
         }
 
-        @MainThread
-        fun fireNotifyMessage(notifyType: Int, message: String) {
-            fireEvent {
-                it.onNotifyMessage(notifyType, message)
-            }
+        override fun getPort() = this@PeerCastService.nativeGetPort()
+
+        override fun setPort(port: Int) = this@PeerCastService.nativeSetPort(port)
+
+        @BinderThread
+        override fun callRpc(request: String): String {
+            return String(callNativeRpc(request))
         }
 
-        private fun fireEvent(f: (INotificationCallback) -> Unit) {
-            val it = callbacks.listIterator()
-            while (it.hasNext()) {
-                kotlin.runCatching {
-                    f(it.next())
-                }.onFailure { e ->
-                    when (e) {
-                        is RemoteException,
-                        is SecurityException,
-                        -> {
-                            it.remove()
-                            Timber.w(e, "remove callback")
-                        }
-
-                        else -> throw e
+        @BinderThread
+        override fun callRpcForStream(request: String): ParcelFileDescriptor {
+            val (r, w) = ParcelFileDescriptor.createPipe()
+            lifecycleScope.launch(Dispatchers.IO) {
+                runCatching {
+                    ParcelFileDescriptor.AutoCloseOutputStream(w).use {
+                        it.write(callNativeRpc(request))
                     }
-                }
+                }.onFailure { Timber.w(it, "callRpcForStream") }
             }
+            return r
         }
 
-        override fun getPort() = this@PeerCastService.nativeGetPort()
-
-        override fun setPort(port: Int) = this@PeerCastService.nativeSetPort(port)
+        //Binderスレッドなどから呼ぶ。nativeQuitと重なった場合は、ネイティブ側で待つか、nullが返る
+        private fun callNativeRpc(request: String): ByteArray {
+            return nativeCallRpc(request)
+                ?: RPC_ERROR_NOT_RUNNING.toByteArray()
+        }
     }
 
     override fun onBind(intent: Intent): IBinder? {
@@ -187,6 +228,18 @@ class PeerCastService : LifecycleService() {
         return super.onStartCommand(intent, flags, startId)
     }
 
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        super.dump(fd, writer, args)
+        notifyDispatcher.dump(writer)
+        writer.println("JNI calls:")
+        writer.print(nativeGetJniStats())
+        writer.print(MiniUpnp.getJniStats())
+        writer.println("Native log dropped: ${nativeGetDroppedLogCount()}")
+        writer.println("Thread priorities:")
+        writer.print(nativeGetThreadPriorities())
+        networkState.dump(writer)
+    }
+
     override fun onUnbind(intent: Intent): Boolean {
         return false
     }
@@ -196,11 +249,15 @@ class PeerCastService : LifecycleService() {
         unregisterReceiver(commandReceiver)
         notificationHelper.stopForeground()
 
-        connMan.unregisterNetworkCallback(networkCallback)
-        if (appPrefs.isUPnPEnabled)
-            UpnpWorker.closePort(this@PeerCastService, nativeGetPort())
+        //起動処理が終わってから実行される。メインスレッドでは待たない
+        nativeExecutor.execute {
+            networkState.removeListener(networkListener)
+            isQuit = true
+            if (appPrefs.isUPnPEnabled)
+                UpnpWorker.closePort(this@PeerCastService, nativeGetPort())
 
-        nativeQuit()
+            nativeQuit()
+        }
     }
 
     /**
@@ -211,7 +268,7 @@ class PeerCastService : LifecycleService() {
     private fun notifyMessage(notifyType: Int, message: String) {
         Timber.d("notifyMessage: $notifyType, $message")
         lifecycleScope.launch {
-            aidlBinder.fireNotifyMessage(notifyType, message)
+            notifyDispatcher.dispatchMessage(notifyType, message)
         }
     }
 
@@ -241,7 +298,7 @@ class PeerCastService : LifecycleService() {
                 else -> throw IllegalArgumentException()
             }
 
-            aidlBinder.fireNotifyChannel(notifyType, chId, jsonChannelInfo)
+            notifyDispatcher.dispatchChannel(notifyType, chId, chInfo, jsonChannelInfo)
         }
     }
 
@@ -249,8 +306,10 @@ class PeerCastService : LifecycleService() {
      * PeerCastを開始します。
      *
      * @param filesDirPath     Context.getFilesDir()
+     * @param channelNotifyInterval notifyChannel(UPDATE)を送る間隔(ミリ秒)。
+     *   その間のUPDATEはチャンネルごとに最新のものだけが送られる。0以下ならまとめない。
      */
-    private external fun nativeStart(filesDirPath: String)
+    private external fun nativeStart(filesDirPath: String, channelNotifyInterval: Int)
 
     /**
      * @param port 動作ポート (1025..65532)
@@ -261,6 +320,50 @@ class PeerCastService : LifecycleService() {
 
     external fun nativeClearCache(cmd: Int = CMD_CLEAR_HOST_CACHE or CMD_CLEAR_HIT_LISTS_CACHE)
 
+    /**
+     * チャンネルを再接続する。(JSON-RPCのbumpChannelと同じ)
+     * @return チャンネルが見つからなければfalse
+     */
+    private external fun nativeBumpChannel(chId: String): Boolean
+
+    /**
+     * チャンネルを停止する。(JSON-RPCのstopChannelと同じ)
+     * @return チャンネルが見つからなければfalse
+     */
+    private external fun nativeStopChannel(chId: String): Boolean
+
+    /**
+     * JSON-RPCのリクエストを直接実行する。
+     * @return レスポンス(UTF-8)。PeerCastが動作していなければnull
+     */
+    private external fun nativeCallRpc(request: String): ByteArray?
+
+    /**
+     * JNIの呼び出し回数と、ネイティブ側での平均所要時間。(dumpsys用)
+     */
+    private external fun nativeGetJniStats(): String
+
+    /**
+     * ログのバッファが一杯で捨てた行数。(dumpsys用)
+     */
+    private external fun nativeGetDroppedLogCount(): Long
+
+    /**
+     * スレッド名(前方一致)ごとの優先度(THREAD_PRIORITY_*)を設定する。nativeStartより前に呼ぶ。
+     * @param rules ex: "SERVENT=-8;YP=10"
+     */
+    private external fun nativeSetThreadPriorities(rules: String)
+
+    /**
+     * 設定した規則と、各スレッドの現在のnice値。(dumpsys用)
+     */
+    private external fun nativeGetThreadPriorities(): String
+
+    /**
+     * IPアドレスかゲートウェイが変わったときに呼ぶ。配信中のチャンネルをトラッカーへ知らせ直す。
+     */
+    private external fun nativeOnNetworkChanged()
+
     /**
      * PeerCastを終了します。
      */
@@ -279,6 +382,33 @@ class PeerCastService : LifecycleService() {
         /**(String)*/
         const val EX_CHANNEL_ID = "channelId"
 
+        //起動後、ソケットに接続できるまで待つ最大の時間(ミリ秒)
+        private const val LISTEN_TIMEOUT = 10_000L
+
+        /**チャンネル情報の更新を通知する間隔(ミリ秒)*/
+        private const val CHANNEL_NOTIFY_INTERVAL = 1000
+
+        //R.array.thread_priority_rulesで使える名前
+        private val THREAD_PRIORITIES = mapOf(
+            "URGENT_AUDIO" to Process.THREAD_PRIORITY_URGENT_AUDIO,
+            "AUDIO" to Process.THREAD_PRIORITY_AUDIO,
+            "URGENT_DISPLAY" to Process.THREAD_PRIORITY_URGENT_DISPLAY,
+            "DISPLAY" to Process.THREAD_PRIORITY_DISPLAY,
+            "FOREGROUND" to Process.THREAD_PRIORITY_FOREGROUND,
+            "DEFAULT" to Process.THREAD_PRIORITY_DEFAULT,
+            "BACKGROUND" to Process.THREAD_PRIORITY_BACKGROUND,
+            "LOWEST" to Process.THREAD_PRIORITY_LOWEST,
+        )
+
+        private const val RPC_ERROR_NOT_RUNNING =
+            """{"jsonrpc":"2.0","error":{"code":-32603,"message":"PeerCast is not running"},"id":null}"""
+
+        /**
+         * nativeStartとnativeQuitはこのスレッドで順に実行する。
+         * 再起動時に、前のインスタンスの終了処理が終わってから開始するためプロセスで1つ。
+         */
+        private val nativeExecutor = Executors.newSingleThreadExecutor { Thread(it, "PeCaNative") }
+
         /**
          * クラス初期化に呼ぶ。
          */
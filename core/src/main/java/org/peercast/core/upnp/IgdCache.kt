@@ -0,0 +1,58 @@
+package org.peercast.core.upnp
+
+import android.content.Context
+import android.net.ConnectivityManager
+import androidx.core.content.edit
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+
+/**
+ * 最後に使えたIGDを、ネットワークごとに保存する。
+ * 再接続時に、SSDPの検索と記述(XML)の取得を省くため。
+ */
+internal class IgdCache(c: Context) {
+    private val prefs = c.getSharedPreferences("upnp-igd-cache", Context.MODE_PRIVATE)
+
+    operator fun get(networkKey: String): IgdInfo? {
+        val s = prefs.getString(networkKey, null) ?: return null
+        return try {
+            Json.decodeFromString<IgdInfo>(s)
+        } catch (e: SerializationException) {
+            null
+        }
+    }
+
+    operator fun set(networkKey: String, info: IgdInfo) {
+        prefs.edit {
+            putString(networkKey, Json.encodeToString(info))
+        }
+    }
+
+    fun remove(networkKey: String) {
+        prefs.edit {
+            remove(networkKey)
+        }
+    }
+
+    companion object {
+        /**
+         * 現在のネットワークを表すキー。 ex: "wlan0/192.168.0.1"
+         * (SSIDは位置情報の権限が必要なので、インターフェイス名とゲートウェイを使う)
+         */
+        fun currentNetworkKey(connMan: ConnectivityManager): String? {
+            val (ifName, gw) = connMan.activeIpv4Gateway() ?: return null
+            return "$ifName/${gw.hostAddress}"
+        }
+    }
+}
+
+@Serializable
+internal data class IgdInfo(
+    val descUrl: String,
+    val controlUrl: String,
+    val serviceType: String,
+    val lanAddress: String,
+)
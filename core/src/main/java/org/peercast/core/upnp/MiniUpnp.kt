@@ -4,19 +4,33 @@ import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.json.Json
 import java.io.IOException
 
-internal class MiniUpnp {
+/**
+ * @param cached 前回のIGD。接続できなければSSDPで検索する。
+ */
+internal class MiniUpnp(cached: IgdInfo? = null) {
     @Suppress("unused")
     private val nativeInstance: Long = 0
 
-    init {
-        initInstance()
-    }
+    /**[cached]のIGDに接続できた*/
+    val isFromCache = initInstance(
+        cached?.descUrl, cached?.controlUrl, cached?.serviceType, cached?.lanAddress
+    )
 
     /**@throws IOException */
-    private external fun initInstance()
+    private external fun initInstance(
+        descUrl: String?, controlUrl: String?,
+        serviceType: String?, lanAddress: String?,
+    ): Boolean
 
     external fun getIpAddress(): String
 
+    private external fun getIgdInfo(): Array<String>
+
+    val igdInfo: IgdInfo
+        get() = getIgdInfo().let { a ->
+            IgdInfo(a[0], a[1], a[2], a[3])
+        }
+
     /**@throws IOException */
     external fun addPort(port: Int, description: String, duration: Int)
     /**/
@@ -24,12 +38,11 @@ internal class MiniUpnp {
     external fun removePort(port: Int)
 
     /**@throws IOException */
-    private external fun getPortMapsJson(): String
+    private external fun getPortMapsArray(): Array<MiniUpnpPortMap>
 
     /**@throws IOException */
     fun getPortMaps(): List<MiniUpnpPortMap> {
-        val s = getPortMapsJson()
-        return Json.decodeFromString(s)
+        return getPortMapsArray().asList()
     }
 
     private external fun getStatusesJson(): String
@@ -45,6 +58,10 @@ internal class MiniUpnp {
         @JvmStatic
         private external fun initClass()
 
+        /**libminiupnpのJNIの呼び出し回数と所要時間*/
+        @JvmStatic
+        external fun getJniStats(): String
+
         init {
             System.loadLibrary("miniupnp")
             initClass()
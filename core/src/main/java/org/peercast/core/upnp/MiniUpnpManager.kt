@@ -3,15 +3,14 @@ package org.peercast.core.upnp
 import android.app.Application
 import android.content.Context
 import android.net.ConnectivityManager
-import android.net.Network
-import android.net.NetworkCapabilities
-import android.net.NetworkRequest
 import android.os.Build
+import android.os.SystemClock
 import kotlinx.coroutines.Runnable
 import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.withContext
 import org.peercast.core.common.upnp.PortMap
 import org.peercast.core.common.upnp.UpnpManager
+import org.peercast.core.util.NetworkStateCoordinator
 import timber.log.Timber
 import java.io.IOException
 import java.util.concurrent.Executors
@@ -19,38 +18,30 @@ import java.util.concurrent.TimeUnit
 import kotlin.time.Duration.Companion.hours
 
 
-class MiniUpnpManager(private val a: Application) : UpnpManager {
+class MiniUpnpManager(
+    private val a: Application,
+    networkState: NetworkStateCoordinator,
+) : UpnpManager {
 
     private val singleThreadExecutor = Executors.newSingleThreadScheduledExecutor()
     private val singleDispatcher = singleThreadExecutor.asCoroutineDispatcher()
 
     private var resMiniUpnp: Result<MiniUpnp>? = null
+    private val connMan = a.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+    private val igdCache = IgdCache(a)
 
     init {
-        val connMan = a.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
-        connMan.registerNetworkCallback(
-            REQ_TYPE_WIFI_ETHERNET,
-            object : ConnectivityManager.NetworkCallback() {
-                private fun clearClient() {
-                    singleThreadExecutor.execute {
-                        resMiniUpnp = null
-                        Timber.d("resMiniUpnp was cleared.")
-                    }
-                }
-
-                override fun onAvailable(network: Network) {
-                    clearClient()
-                }
-
-                override fun onLost(network: Network) {
-                    clearClient()
-                }
-            })
+        networkState.addListener { _, _ ->
+            singleThreadExecutor.execute {
+                resMiniUpnp = null
+                Timber.d("resMiniUpnp was cleared.")
+            }
+        }
     }
 
     private fun getOrCreateMiniUpnp(): MiniUpnp {
         return resMiniUpnp?.getOrThrow() ?: kotlin.runCatching {
-            MiniUpnp()
+            createMiniUpnp()
         }.let { r ->
             resMiniUpnp = r
             r.onFailure {
@@ -62,8 +53,33 @@ class MiniUpnpManager(private val a: Application) : UpnpManager {
         }
     }
 
-    override suspend fun addPort(port: Int) {
-        withContext(singleDispatcher) {
+    /**
+     * 同じネットワークで前回使えたIGDがあれば、それを先に試す。
+     * (自分のIPアドレスが変わっていれば、ポートの転送先が違うので使わない)
+     * */
+    private fun createMiniUpnp(): MiniUpnp {
+        val key = IgdCache.currentNetworkKey(connMan)
+        val cached = key?.let { igdCache[it] }
+            ?.takeIf { it.lanAddress in connMan.activeIpv4Addresses() }
+        val started = SystemClock.elapsedRealtime()
+        val mu = try {
+            MiniUpnp(cached)
+        } catch (e: IOException) {
+            key?.let { igdCache.remove(it) }
+            throw e
+        }
+        val info = mu.igdInfo
+        Timber.i(
+            "IGD: ${info.descUrl} (${if (mu.isFromCache) "cached" else "discovered"}, " +
+                    "${SystemClock.elapsedRealtime() - started}ms)"
+        )
+        if (key != null && info != cached)
+            igdCache[key] = info
+        return mu
+    }
+
+    override suspend fun addPort(port: Int): Int {
+        return withContext(singleDispatcher) {
             getOrCreateMiniUpnp().let { mu ->
                 try {
                     mu.getPortMaps().firstOrNull { m ->
@@ -79,6 +95,21 @@ class MiniUpnpManager(private val a: Application) : UpnpManager {
                     Timber.w(e, "Couldn't remove exists port $port.")
                 }
                 mu.addPort(port, ADD_PORT_DESCRIPTION, ADD_PORT_DURATION)
+
+                //自分に向いているかを確かめ、残りのリース期間を返す
+                val m = try {
+                    mu.getPortMaps().firstOrNull { it.externalPort == port && it.protocol == "TCP" }
+                } catch (e: IOException) {
+                    Timber.w(e, "Couldn't verify port $port.")
+                    null
+                }
+                when {
+                    //一覧を返さないルーター
+                    m == null -> ADD_PORT_DURATION
+                    m.internalClient != mu.getIpAddress() ->
+                        throw IOException("port $port is mapped to ${m.internalClient}")
+                    else -> m.leaseDuration
+                }
             }
         }
     }
@@ -101,31 +132,16 @@ class MiniUpnpManager(private val a: Application) : UpnpManager {
         return withContext(singleDispatcher) {
             getOrCreateMiniUpnp().getStatuses().mapKeys {
                 // R.string.upnp_ip_address -> "Ip Address"
-                getStringResourceByName(it.key)
+                a.getStringResourceByName(it.key)
             }
         }
     }
 
-    private fun getStringResourceByName(name: String): String {
-        val resId = a.resources.getIdentifier(
-            name, "string", a.packageName
-        )
-        return when (resId) {
-            0 -> name
-            else -> a.getString(resId)
-        }
-    }
-
     companion object {
         private const val RETRY_DISCOVERY_SECONDS = 30L
 
         private val ADD_PORT_DESCRIPTION = "PeerCast(${Build.BRAND} ${Build.DEVICE})"
         private val ADD_PORT_DURATION = 48.hours.inWholeSeconds.toInt()
-
-        val REQ_TYPE_WIFI_ETHERNET = NetworkRequest.Builder()
-            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
-            .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
-            .build()!!
     }
 
 }
\ No newline at end of file
@@ -1,9 +1,8 @@
 package org.peercast.core.upnp
 
-import kotlinx.serialization.Serializable
 import org.peercast.core.common.upnp.PortMap
 
-@Serializable
+/**ネイティブ側で生成する。(引数の順番を変えないこと)*/
 internal data class MiniUpnpPortMap(
     override val externalPort: Int,
     override val internalClient: String,
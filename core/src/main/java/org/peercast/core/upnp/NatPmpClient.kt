@@ -0,0 +1,219 @@
+package org.peercast.core.upnp
+
+import java.io.IOException
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.Inet4Address
+import java.net.InetAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.security.SecureRandom
+
+/**
+ * PCP(RFC 6887)とNAT-PMP(RFC 6886)のクライアント。TCPのポートだけを扱う。
+ *
+ * - まずPCPで要求し、ゲートウェイがバージョン0(NAT-PMP)で答えれば、以降はNAT-PMPを使う。
+ * - 応答がなければ[initialTimeout]ミリ秒から倍にしながら[maxTries]回まで送る。
+ * - ブロックするので、メインスレッドからは呼ばないこと。
+ */
+internal class NatPmpClient(
+    val gateway: InetAddress,
+    private val port: Int = PORT,
+    private val maxTries: Int = 4,
+    private val initialTimeout: Int = 250,
+) {
+    /**ゲートウェイが応答したバージョン。(VERSION_PCP, VERSION_NAT_PMP) 不明ならnull*/
+    @Volatile
+    var version: Int? = null
+        private set
+
+    //PCPでは、削除するときにも作成時と同じnonceが必要
+    private val nonces = HashMap<Int, ByteArray>()
+
+    class Mapping(
+        val internalClient: InetAddress,
+        val internalPort: Int,
+        val externalPort: Int,
+        /**秒*/
+        val lifetime: Int,
+        /**PCPのみ*/
+        val externalAddress: InetAddress?,
+    )
+
+    class ResultCodeException(val version: Int, val resultCode: Int) :
+        IOException("${if (version == VERSION_PCP) "PCP" else "NAT-PMP"} result code: $resultCode")
+
+    /**
+     * @param lifetime 秒。0なら削除
+     * @throws IOException
+     */
+    @Synchronized
+    fun map(internalPort: Int, suggestedExternalPort: Int, lifetime: Int): Mapping {
+        require(internalPort in 1..0xffff)
+        DatagramSocket().use { s ->
+            s.connect(gateway, port)
+            if (version != VERSION_NAT_PMP) {
+                val m = mapPcp(s, internalPort, suggestedExternalPort, lifetime)
+                if (m != null)
+                    return m
+            }
+            return mapNatPmp(s, internalPort, suggestedExternalPort, lifetime)
+        }
+    }
+
+    /**@throws IOException */
+    fun unmap(internalPort: Int) {
+        map(internalPort, 0, 0)
+    }
+
+    /**
+     * NAT-PMPで外部IPアドレスを得る。
+     * @throws IOException
+     */
+    @Synchronized
+    fun externalAddress(): InetAddress {
+        DatagramSocket().use { s ->
+            s.connect(gateway, port)
+            val res = exchange(s, byteArrayOf(VERSION_NAT_PMP.toByte(), 0)) { b ->
+                b.limit() >= 12 && b[0].toInt() == VERSION_NAT_PMP && b[1].toInt() == 0x80.toByte().toInt()
+            }
+            checkResult(VERSION_NAT_PMP, res.getShort(2).toInt() and 0xffff)
+            val a = ByteArray(4)
+            res.position(8)
+            res.get(a)
+            return InetAddress.getByAddress(a)
+        }
+    }
+
+    //ゲートウェイがNAT-PMPしか話さなければnull
+    private fun mapPcp(s: DatagramSocket, internalPort: Int, suggestedExternalPort: Int, lifetime: Int): Mapping? {
+        val nonce = synchronized(nonces) {
+            if (lifetime == 0) nonces[internalPort] else null
+        } ?: ByteArray(12).also { random.nextBytes(it) }
+
+        val req = ByteBuffer.allocate(60)
+            .put(VERSION_PCP.toByte())
+            .put(OPCODE_MAP.toByte())
+            .putShort(0)
+            .putInt(lifetime)
+            .put(toIpv4Mapped(s.localAddress))
+            .put(nonce)
+            .put(PROTOCOL_TCP.toByte())
+            .put(ByteArray(3))
+            .putShort(internalPort.toShort())
+            .putShort(suggestedExternalPort.toShort())
+            .put(toIpv4Mapped(null))
+            .array()
+
+        val res = exchange(s, req) { b ->
+            when {
+                //NAT-PMPのみ: UNSUPP_VERSION
+                b.limit() >= 4 && b[0].toInt() == VERSION_NAT_PMP -> true
+                b.limit() < 60 || b[0].toInt() != VERSION_PCP -> false
+                b[1].toInt() != (0x80 or OPCODE_MAP).toByte().toInt() -> false
+                else -> ByteArray(12).also { b.position(24); b.get(it) }.contentEquals(nonce)
+            }
+        }
+        if (res[0].toInt() == VERSION_NAT_PMP) {
+            version = VERSION_NAT_PMP
+            return null
+        }
+        version = VERSION_PCP
+        checkResult(VERSION_PCP, res[3].toInt() and 0xff)
+
+        synchronized(nonces) {
+            if (lifetime == 0) nonces.remove(internalPort) else nonces[internalPort] = nonce
+        }
+        val ext = ByteArray(16)
+        res.position(44)
+        res.get(ext)
+        return Mapping(
+            s.localAddress,
+            internalPort,
+            res.getShort(42).toInt() and 0xffff,
+            res.getInt(4),
+            InetAddress.getByAddress(ext)
+        )
+    }
+
+    private fun mapNatPmp(s: DatagramSocket, internalPort: Int, suggestedExternalPort: Int, lifetime: Int): Mapping {
+        val req = ByteBuffer.allocate(12)
+            .put(VERSION_NAT_PMP.toByte())
+            .put(NAT_PMP_OPCODE_MAP_TCP.toByte())
+            .putShort(0)
+            .putShort(internalPort.toShort())
+            .putShort(suggestedExternalPort.toShort())
+            .putInt(lifetime)
+            .array()
+
+        val res = exchange(s, req) { b ->
+            b.limit() >= 16 && b[0].toInt() == VERSION_NAT_PMP &&
+                    b[1].toInt() == (0x80 or NAT_PMP_OPCODE_MAP_TCP).toByte().toInt() &&
+                    (b.getShort(8).toInt() and 0xffff) == internalPort
+        }
+        version = VERSION_NAT_PMP
+        checkResult(VERSION_NAT_PMP, res.getShort(2).toInt() and 0xffff)
+        return Mapping(
+            s.localAddress,
+            internalPort,
+            res.getShort(10).toInt() and 0xffff,
+            res.getInt(12),
+            null
+        )
+    }
+
+    /**[accept]に合う応答が来るまで、間隔を倍にしながら送り直す。*/
+    private fun exchange(s: DatagramSocket, req: ByteArray, accept: (ByteBuffer) -> Boolean): ByteBuffer {
+        val buf = ByteArray(1100)
+        var timeout = initialTimeout
+        repeat(maxTries) {
+            s.send(DatagramPacket(req, req.size))
+            val deadline = System.nanoTime() + timeout * 1_000_000L
+            while (true) {
+                val remain = ((deadline - System.nanoTime()) / 1_000_000L).toInt()
+                if (remain <= 0)
+                    break
+                s.soTimeout = remain
+                val p = DatagramPacket(buf, buf.size)
+                try {
+                    s.receive(p)
+                } catch (e: SocketTimeoutException) {
+                    break
+                }
+                val b = ByteBuffer.wrap(p.data.copyOf(p.length))
+                if (accept(b))
+                    return b.rewind() as ByteBuffer
+            }
+            timeout *= 2
+        }
+        throw SocketTimeoutException("no response from $gateway:$port")
+    }
+
+    private fun checkResult(version: Int, resultCode: Int) {
+        if (resultCode != 0)
+            throw ResultCodeException(version, resultCode)
+    }
+
+    companion object {
+        const val PORT = 5351
+
+        const val VERSION_NAT_PMP = 0
+        const val VERSION_PCP = 2
+
+        private const val OPCODE_MAP = 1
+        private const val NAT_PMP_OPCODE_MAP_TCP = 2
+        private const val PROTOCOL_TCP = 6
+
+        private val random = SecureRandom()
+
+        //::ffff:a.b.c.d  (nullなら ::ffff:0.0.0.0)
+        private fun toIpv4Mapped(a: InetAddress?): ByteArray {
+            return ByteArray(16).also { b ->
+                b[10] = 0xff.toByte()
+                b[11] = 0xff.toByte()
+                if (a is Inet4Address)
+                    a.address.copyInto(b, 12)
+            }
+        }
+    }
+}
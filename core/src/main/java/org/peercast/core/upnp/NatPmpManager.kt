@@ -0,0 +1,105 @@
+package org.peercast.core.upnp
+
+import android.app.Application
+import android.content.Context
+import android.net.ConnectivityManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import org.peercast.core.common.upnp.PortMap
+import org.peercast.core.common.upnp.UpnpManager
+import timber.log.Timber
+import java.io.IOException
+import kotlin.time.Duration.Companion.hours
+
+/**
+ * デフォルトゲートウェイにPCP/NAT-PMPでポートを開ける。
+ * SSDPもHTTPも使わず、UDPの1往復で済む。
+ *
+ * NAT-PMPでは一覧を取得できないので、[getPortMaps]はこのプロセスで開けたものを返す。
+ */
+internal class NatPmpManager(private val a: Application) : UpnpManager {
+    private val connMan = a.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+    private val mutex = Mutex()
+    private var client: NatPmpClient? = null
+    private val mappings = LinkedHashMap<Int, NatPmpClient.Mapping>()
+
+    //ゲートウェイが変わったら作り直す
+    private fun getClient(): NatPmpClient {
+        val (_, gw) = connMan.activeIpv4Gateway() ?: throw IOException("no IPv4 gateway")
+        return client?.takeIf { it.gateway == gw } ?: NatPmpClient(gw).also {
+            client = it
+            mappings.clear()
+        }
+    }
+
+    override suspend fun addPort(port: Int): Int {
+        return mutex.withLock {
+            withContext(Dispatchers.IO) {
+                val m = getClient().map(port, port, ADD_PORT_LIFETIME)
+                Timber.i("mapped: ${m.externalAddress ?: ""}:${m.externalPort} -> $port (${m.lifetime}s)")
+                mappings[port] = m
+                m.lifetime
+            }
+        }
+    }
+
+    override suspend fun removePort(port: Int) {
+        mutex.withLock {
+            withContext(Dispatchers.IO) {
+                getClient().unmap(port)
+                mappings.remove(port)
+            }
+        }
+    }
+
+    override suspend fun getPortMaps(): List<PortMap> {
+        return mutex.withLock {
+            mappings.values.map {
+                NatPmpPortMap(
+                    it.externalPort,
+                    it.internalClient.hostAddress ?: "",
+                    it.internalPort,
+                    it.lifetime
+                )
+            }
+        }
+    }
+
+    override suspend fun getStatuses(): Map<String, String> {
+        return mutex.withLock {
+            withContext(Dispatchers.IO) {
+                val c = getClient()
+                val ext = mappings.values.firstNotNullOfOrNull { it.externalAddress }
+                    ?: c.externalAddress()
+                mapOf(
+                    "upnp_natpmp_gateway" to (c.gateway.hostAddress ?: ""),
+                    "upnp_natpmp_version" to when (c.version) {
+                        NatPmpClient.VERSION_PCP -> "PCP"
+                        NatPmpClient.VERSION_NAT_PMP -> "NAT-PMP"
+                        else -> "-"
+                    },
+                    "upnp_natpmp_external_ip_address" to (ext.hostAddress ?: ""),
+                ).mapKeys { a.getStringResourceByName(it.key) }
+            }
+        }
+    }
+
+    private data class NatPmpPortMap(
+        override val externalPort: Int,
+        override val internalClient: String,
+        override val internalPort: Int,
+        override val leaseDuration: Int,
+    ) : PortMap {
+        override val protocol = "TCP"
+        override val description = "PeerCast (NAT-PMP)"
+        override val enabled = true
+        override val remoteHost = ""
+    }
+
+    companion object {
+        //ゲートウェイが短くすることもある
+        private val ADD_PORT_LIFETIME = 48.hours.inWholeSeconds.toInt()
+    }
+}
@@ -0,0 +1,33 @@
+package org.peercast.core.upnp
+
+import android.content.Context
+import android.net.ConnectivityManager
+import java.net.Inet4Address
+
+/**アクティブなネットワークの(インターフェイス名, IPv4のデフォルトゲートウェイ)*/
+internal fun ConnectivityManager.activeIpv4Gateway(): Pair<String, Inet4Address>? {
+    val lp = getLinkProperties(activeNetwork) ?: return null
+    val gw = lp.routes.firstOrNull {
+        it.isDefaultRoute && it.gateway is Inet4Address
+    }?.gateway as Inet4Address? ?: return null
+    return (lp.interfaceName ?: "") to gw
+}
+
+/**アクティブなネットワークのIPv4アドレス ex: ["192.168.0.10"]*/
+internal fun ConnectivityManager.activeIpv4Addresses(): List<String> {
+    val lp = getLinkProperties(activeNetwork) ?: return emptyList()
+    return lp.linkAddresses.map { it.address }
+        .filterIsInstance<Inet4Address>()
+        .mapNotNull { it.hostAddress }
+}
+
+/** R.string.upnp_ip_address -> "IP Address" (なければnameのまま)*/
+internal fun Context.getStringResourceByName(name: String): String {
+    val resId = resources.getIdentifier(
+        name, "string", packageName
+    )
+    return when (resId) {
+        0 -> name
+        else -> getString(resId)
+    }
+}
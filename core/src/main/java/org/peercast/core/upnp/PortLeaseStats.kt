@@ -0,0 +1,78 @@
+package org.peercast.core.upnp
+
+import android.content.Context
+import android.text.format.DateUtils
+import androidx.core.content.edit
+
+/**
+ * ポートのリースと、その更新の記録。(設定画面の状態に表示する)
+ */
+internal class PortLeaseStats(private val c: Context) {
+    private val prefs = c.getSharedPreferences("upnp-lease", Context.MODE_PRIVATE)
+
+    /**
+     * @param lease 残りのリース期間(秒)。0なら無期限
+     * @param latency addPortの所要時間(ミリ秒)
+     */
+    fun onMapped(isRenewal: Boolean, lease: Int, latency: Long) {
+        val now = System.currentTimeMillis()
+        prefs.edit {
+            putLong(KEY_EXPIRES_AT, if (lease > 0) now + lease * 1000L else 0)
+            if (isRenewal) {
+                putInt(KEY_RENEWALS, prefs.getInt(KEY_RENEWALS, 0) + 1)
+                putLong(KEY_RENEWAL_LATENCY, latency)
+            }
+        }
+    }
+
+    fun onRenewalFailed(e: Exception) {
+        prefs.edit {
+            putInt(KEY_FAILURES, prefs.getInt(KEY_FAILURES, 0) + 1)
+            putString(KEY_LAST_ERROR, e.message ?: e.javaClass.simpleName)
+        }
+    }
+
+    fun onScheduled(at: Long) {
+        prefs.edit {
+            putLong(KEY_NEXT_RENEWAL_AT, at)
+        }
+    }
+
+    fun onClosed() {
+        prefs.edit {
+            remove(KEY_EXPIRES_AT)
+            remove(KEY_NEXT_RENEWAL_AT)
+        }
+    }
+
+    fun toStatuses(): Map<String, String> {
+        if (!prefs.contains(KEY_NEXT_RENEWAL_AT))
+            return emptyMap()
+        val m = LinkedHashMap<String, String>()
+        val expiresAt = prefs.getLong(KEY_EXPIRES_AT, 0)
+        m["upnp_lease_expires"] = if (expiresAt > 0) formatTime(expiresAt) else "-"
+        m["upnp_next_renewal"] = formatTime(prefs.getLong(KEY_NEXT_RENEWAL_AT, 0))
+        m["upnp_renewals"] = "${prefs.getInt(KEY_RENEWALS, 0)} / ${prefs.getInt(KEY_FAILURES, 0)}"
+        if (prefs.contains(KEY_RENEWAL_LATENCY))
+            m["upnp_renewal_latency"] = "${prefs.getLong(KEY_RENEWAL_LATENCY, 0)}ms"
+        prefs.getString(KEY_LAST_ERROR, null)?.let {
+            m["upnp_last_renewal_error"] = it
+        }
+        return m.mapKeys { c.getStringResourceByName(it.key) }
+    }
+
+    private fun formatTime(millis: Long): String {
+        return DateUtils.formatDateTime(
+            c, millis, DateUtils.FORMAT_SHOW_DATE or DateUtils.FORMAT_SHOW_TIME
+        )
+    }
+
+    companion object {
+        private const val KEY_EXPIRES_AT = "expires_at"
+        private const val KEY_NEXT_RENEWAL_AT = "next_renewal_at"
+        private const val KEY_RENEWALS = "renewals"
+        private const val KEY_FAILURES = "failures"
+        private const val KEY_RENEWAL_LATENCY = "renewal_latency"
+        private const val KEY_LAST_ERROR = "last_error"
+    }
+}
@@ -0,0 +1,215 @@
+package org.peercast.core.upnp
+
+import android.app.Application
+import android.os.SystemClock
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import org.peercast.core.common.upnp.PortMap
+import org.peercast.core.common.upnp.UpnpManager
+import timber.log.Timber
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 複数のポート開放の方式(UPnP, PCP/NAT-PMP)を同時に試し、先に成功したものを使う。
+ *
+ * - addPortで勝ったものを覚えておき、getPortMapsではそれを先に使う。
+ * - addPortで負けた方もキャンセルしない。(ブロックしているUPnPは止められず、ルーターには開く)
+ *   成功した方式はすべて記録し、次のaddPort(リースの更新)ではそれらすべてを更新する。
+ * - removePortは、実行中のaddPortが終わるのを待ってから、すべてに送る。
+ * - 方式ごとに、最後にaddPortが成功したときの所要時間を[getStatuses]で返す。
+ *   (リースの更新の記録も合わせて返す)
+ *
+ * @param backends 名前 -> 方式
+ */
+internal class RacingUpnpManager(
+    private val a: Application,
+    private val backends: Map<String, UpnpManager>,
+) : UpnpManager {
+
+    @Volatile
+    private var preferred: String? = null
+    private val latencies = ConcurrentHashMap<String, Long>()
+    private val leaseStats = PortLeaseStats(a)
+
+    //ポート -> 開けるのに成功した方式
+    private val mapped = ConcurrentHashMap<Int, MutableSet<String>>()
+
+    //ポート -> まだ終わっていないaddPort
+    private val pendingAdds = ConcurrentHashMap<Int, List<Job>>()
+
+    //負けた方(ブロックしているUPnPなど)の終了を待たないため、呼び出し元のスコープでは動かさない
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    /**
+     * 先に成功したものの(名前, 結果)を返し、残りはキャンセルする。
+     * @param measure 所要時間を記録する
+     * @param losers nullでなければ残りはキャンセルせず、ここに加える
+     * @throws IOException すべて失敗した
+     */
+    private suspend fun <T> race(
+        op: String,
+        measure: Boolean = false,
+        losers: MutableList<Job>? = null,
+        block: suspend (name: String, m: UpnpManager) -> T,
+    ): Pair<String, T> {
+        val results = Channel<Pair<String, Result<T>>>(backends.size)
+        val jobs = backends.map { (name, m) ->
+            scope.launch {
+                val started = SystemClock.elapsedRealtime()
+                val r = try {
+                    Result.success(block(name, m))
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    Result.failure(e)
+                }
+                val t = SystemClock.elapsedRealtime() - started
+                if (measure && r.isSuccess)
+                    latencies[name] = t
+                Timber.d("$op: $name ${if (r.isSuccess) "succeeded" else "failed"} in ${t}ms")
+                results.send(name to r)
+            }
+        }
+
+        try {
+            val errors = ArrayList<Throwable>()
+            repeat(backends.size) {
+                val (name, r) = results.receive()
+                r.onSuccess { v ->
+                    return name to v
+                }.onFailure {
+                    errors += it
+                }
+            }
+            throw IOException("$op: all failed").also { e ->
+                errors.forEach(e::addSuppressed)
+            }
+        } finally {
+            if (losers != null)
+                losers += jobs.filter { it.isActive }
+            else
+                jobs.forEach { it.cancel() }
+        }
+    }
+
+    override suspend fun addPort(port: Int): Int {
+        val names = mapped[port]?.toList()
+        if (!names.isNullOrEmpty())
+            return renewPort(port, names)
+
+        val losers = ArrayList<Job>()
+        val (name, lease) = race("addPort", true, losers) { name, m ->
+            m.addPort(port).also {
+                mapped.getOrPut(port) { ConcurrentHashMap.newKeySet() }.add(name)
+            }
+        }
+        pendingAdds[port] = losers
+        Timber.i("addPort: $port by $name (${lease}s)")
+        preferred = name
+        return lease
+    }
+
+    /**
+     * 前回成功したすべての方式で開け直す。
+     * @return 短い方のリース(秒)。0なら無期限
+     * @throws IOException すべて失敗した
+     */
+    private suspend fun renewPort(port: Int, names: List<String>): Int {
+        val results = coroutineScope {
+            names.map { name ->
+                async {
+                    name to try {
+                        Result.success(backends.getValue(name).addPort(port))
+                    } catch (e: IOException) {
+                        Timber.w(e, "addPort: $name")
+                        mapped[port]?.remove(name)
+                        Result.failure(e)
+                    }
+                }
+            }.awaitAll()
+        }
+        val leases = results.mapNotNull { (name, r) -> r.getOrNull()?.let { name to it } }
+        if (leases.isEmpty()) {
+            throw IOException("addPort: all failed").also { e ->
+                results.mapNotNull { it.second.exceptionOrNull() }.forEach(e::addSuppressed)
+            }
+        }
+        Timber.i("addPort: $port renewed by ${leases.joinToString { it.first }}")
+        return leases.map { it.second }.filter { it > 0 }.minOrNull() ?: 0
+    }
+
+    override suspend fun removePort(port: Int) {
+        //負けた方が後から開けないよう、終わるのを待つ
+        pendingAdds.remove(port)?.joinAll()
+        mapped.remove(port)
+
+        val results = coroutineScope {
+            backends.values.map { m ->
+                async {
+                    try {
+                        m.removePort(port)
+                        null
+                    } catch (e: IOException) {
+                        e
+                    }
+                }
+            }.awaitAll()
+        }
+        if (results.all { it != null }) {
+            throw IOException("removePort: all failed").also { e ->
+                results.forEach { e.addSuppressed(it!!) }
+            }
+        }
+    }
+
+    override suspend fun getPortMaps(): List<PortMap> {
+        val m = backends[preferred ?: ""]
+        if (m != null) {
+            try {
+                return m.getPortMaps()
+            } catch (e: IOException) {
+                Timber.w(e, "getPortMaps: $preferred")
+            }
+        }
+        return race("getPortMaps") { _, m -> m.getPortMaps() }.second
+    }
+
+    override suspend fun getStatuses(): Map<String, String> {
+        val statuses = coroutineScope {
+            backends.map { (name, m) ->
+                async {
+                    try {
+                        m.getStatuses()
+                    } catch (e: IOException) {
+                        Timber.d(e, "getStatuses: $name")
+                        emptyMap()
+                    }
+                }
+            }.awaitAll()
+        }
+        return LinkedHashMap<String, String>().also { map ->
+            statuses.forEach { map.putAll(it) }
+            preferred?.let { p ->
+                //勝った方を先に。負けた方でも開いていれば並べる
+                val names = listOf(p) + mapped.values.flatten().distinct().filter { it != p }
+                map[a.getStringResourceByName("upnp_backend")] = names.joinToString(", ")
+            }
+            if (latencies.isNotEmpty()) {
+                map[a.getStringResourceByName("upnp_latency")] =
+                    backends.keys.filter { latencies.containsKey(it) }
+                        .joinToString(", ") { "$it ${latencies[it]}ms" }
+            }
+            map.putAll(leaseStats.toStatuses())
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package org.peercast.core.upnp
 
 import android.content.Context
+import android.os.SystemClock
+import androidx.work.BackoffPolicy
 import androidx.work.Constraints
 import androidx.work.CoroutineWorker
 import androidx.work.Data
+import androidx.work.ExistingWorkPolicy
 import androidx.work.NetworkType
 import androidx.work.OneTimeWorkRequest
 import androidx.work.WorkManager
@@ -13,10 +16,14 @@ import org.koin.core.component.inject
 import org.peercast.core.common.upnp.UpnpManager
 import timber.log.Timber
 import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.time.Duration.Companion.hours
+import kotlin.time.Duration.Companion.minutes
 
 class UpnpWorker(appContext: Context, params: WorkerParameters) :
     CoroutineWorker(appContext, params), KoinComponent {
     private val upnpManager by inject<UpnpManager>()
+    private val leaseStats = PortLeaseStats(appContext)
 
     override suspend fun doWork(): Result {
         val port = inputData.getInt(PARAM_PORT, 7144)
@@ -25,17 +32,33 @@ class UpnpWorker(appContext: Context, params: WorkerParameters) :
             return Result.failure()
         }
 
-        val f = when (inputData.getInt(PARAM_OPERATION, -1)) {
-            OPERATION_OPEN -> upnpManager::addPort
-            OPERATION_CLOSE -> upnpManager::removePort
-            else -> throw IllegalArgumentException()
-        }
-
+        val operation = inputData.getInt(PARAM_OPERATION, -1)
         try {
-            f(port)
+            when (operation) {
+                OPERATION_OPEN, OPERATION_RENEW -> {
+                    val started = SystemClock.elapsedRealtime()
+                    val lease = upnpManager.addPort(port)
+                    val latency = SystemClock.elapsedRealtime() - started
+                    Timber.i("port $port ${if (operation == OPERATION_RENEW) "renewed" else "opened"}: lease=${lease}s, ${latency}ms")
+                    leaseStats.onMapped(operation == OPERATION_RENEW, lease, latency)
+                    scheduleRenewal(operation == OPERATION_RENEW, port, lease)
+                }
+                OPERATION_CLOSE -> {
+                    upnpManager.removePort(port)
+                    leaseStats.onClosed()
+                }
+                else -> throw IllegalArgumentException()
+            }
             return Result.success()
         } catch (e: IOException) {
             Timber.d(e)
+            if (operation == OPERATION_RENEW) {
+                leaseStats.onRenewalFailed(e)
+                //リースが切れる前に、間隔を空けて再試行する
+                if (runAttemptCount < MAX_RENEW_ATTEMPTS)
+                    return Result.retry()
+                Timber.w(e, "port $port: renewal failed $runAttemptCount times.")
+            }
         } catch (t: Throwable) {
             //NOTE: 例外が起きても[androidx.work.impl.WorkerWrapper]内で
             //キャッチされるだけ。補足しにくいので注意。
@@ -44,21 +67,63 @@ class UpnpWorker(appContext: Context, params: WorkerParameters) :
         return Result.failure()
     }
 
+    /**残りのリースが1/3になったら更新する。無期限なら、消えていないかを時々確かめる。*/
+    private fun scheduleRenewal(isRenewal: Boolean, port: Int, lease: Int) {
+        val delay = when (lease) {
+            0 -> PERMANENT_CHECK_INTERVAL
+            else -> maxOf(lease * 2L / 3, MIN_RENEW_DELAY)
+        }
+        val req = OneTimeWorkRequest.Builder(UpnpWorker::class.java)
+            .addTag(TAG_RENEW)
+            .setInputData(
+                Data.Builder()
+                    .putInt(PARAM_OPERATION, OPERATION_RENEW)
+                    .putInt(PARAM_PORT, port)
+                    .build()
+            )
+            .setInitialDelay(delay, TimeUnit.SECONDS)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, RENEW_BACKOFF, TimeUnit.SECONDS)
+            .setConstraints(
+                Constraints.Builder()
+                    .setRequiredNetworkType(NetworkType.CONNECTED)
+                    .build()
+            )
+            .build()
+
+        //実行中の自分を置き換えないよう、更新からは後ろにつなげる
+        WorkManager.getInstance(applicationContext).enqueueUniqueWork(
+            WORK_RENEW,
+            if (isRenewal) ExistingWorkPolicy.APPEND_OR_REPLACE else ExistingWorkPolicy.REPLACE,
+            req
+        )
+        leaseStats.onScheduled(System.currentTimeMillis() + delay * 1000)
+    }
+
     companion object {
-        /* open | close*/
+        /* open | close | renew*/
         private const val PARAM_OPERATION = "operation"
         private const val OPERATION_OPEN = 1
         private const val OPERATION_CLOSE = 2
+        private const val OPERATION_RENEW = 3
 
         private const val PARAM_PORT = "port"
 
         private const val TAG_WORKER = "UpnpWorker"
+        private const val TAG_RENEW = "UpnpRenew"
+        private const val WORK_RENEW = "UpnpRenew"
+
+        //秒
+        private val PERMANENT_CHECK_INTERVAL = 12.hours.inWholeSeconds
+        private val MIN_RENEW_DELAY = 1.minutes.inWholeSeconds
+        private val RENEW_BACKOFF = 1.minutes.inWholeSeconds
+        private const val MAX_RENEW_ATTEMPTS = 5
 
         fun openPort(c: Context, port: Int) {
             enqueueOneTimeWorkRequest(c, OPERATION_OPEN, port)
         }
 
         fun closePort(c: Context, port: Int) {
+            WorkManager.getInstance(c).cancelUniqueWork(WORK_RENEW)
             enqueueOneTimeWorkRequest(c, OPERATION_CLOSE, port)
         }
 
@@ -86,4 +151,4 @@ class UpnpWorker(appContext: Context, params: WorkerParameters) :
 
     }
 
-}
\ No newline at end of file
+}
@@ -1,8 +1,16 @@
 package org.peercast.core.util
 
 import android.content.res.AssetManager
+import android.os.SystemClock
+import org.peercast.core.common.AssetZip
 import timber.log.Timber
 import java.io.File
+import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.ZipException
 import java.util.zip.ZipInputStream
 
 /**
@@ -10,15 +18,20 @@ import java.util.zip.ZipInputStream
  * @licenses Dual licensed under the MIT or GPL licenses.
  */
 
+private fun resolveEntry(destDir: File, name: String): File {
+    val out = File(destDir, name)
+    //Fixing a Zip Path Traversal Vulnerability
+    //https://support.google.com/faqs/answer/9294009?hl=ja
+    if (!out.canonicalPath.startsWith(destDir.canonicalPath))
+        throw SecurityException("Zip Path Traversal Vulnerability: [$out, $destDir]")
+    return out
+}
+
 private fun upzipCopyTo(zis: ZipInputStream, destDir: File) {
     while (true) {
         val ze = zis.nextEntry ?: break
         if (!ze.isDirectory) {
-            val out = File(destDir, ze.name)
-            //Fixing a Zip Path Traversal Vulnerability
-            //https://support.google.com/faqs/answer/9294009?hl=ja
-            if (!out.canonicalPath.startsWith(destDir.canonicalPath))
-                throw SecurityException("Zip Path Traversal Vulnerability: [$out, $destDir]")
+            val out = resolveEntry(destDir, ze.name)
             Timber.i("Unzip: $out")
             val parent = out.parentFile ?: continue
             if (!parent.exists())
@@ -36,3 +49,101 @@ internal fun AssetManager.unzipFile(fileName: String, destDir: File) {
         upzipCopyTo(it, destDir)
     }
 }
+
+/**
+ * 前回から変わったエントリだけを展開する。
+ *
+ * - 展開したエントリのCRCとサイズを destDir/(fileName).manifest に保存し、
+ *   次回は同じもの(かつファイルのサイズも同じもの)を飛ばす。
+ * - 展開は[nThreads]個のスレッドで行う。CRCを確かめてから一時ファイルをrenameする。
+ * - 前回展開して、今回のzipにないファイルは削除する。
+ *
+ * APKのzipをmmapできなければ(圧縮されて格納されている)、すべて展開する。
+ */
+internal fun AssetManager.unzipChangedEntries(
+    fileName: String, destDir: File,
+    nThreads: Int = Runtime.getRuntime().availableProcessors().coerceIn(1, 4),
+) {
+    val manifestFile = File(destDir, "$fileName.manifest")
+    val zip = AssetZip.open(this, fileName)
+    if (zip == null) {
+        manifestFile.delete()
+        unzipFile(fileName, destDir)
+        return
+    }
+
+    val started = SystemClock.elapsedRealtime()
+    val old = readManifest(manifestFile)
+    val changed = zip.entries.filter { e ->
+        old[e.name] != e.crc to e.size.toLong() ||
+                resolveEntry(destDir, e.name).length() != e.size.toLong()
+    }
+
+    val pool = Executors.newFixedThreadPool(nThreads)
+    try {
+        changed.map { e ->
+            pool.submit { zip.extractTo(e, resolveEntry(destDir, e.name)) }
+        }.forEach {
+            try {
+                it.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    } finally {
+        pool.shutdownNow()
+    }
+
+    //zipからなくなったもの
+    val names = zip.entries.mapTo(HashSet()) { it.name }
+    old.keys.filter { it !in names }.forEach {
+        resolveEntry(destDir, it).delete()
+    }
+
+    writeManifest(manifestFile, zip.entries)
+    Timber.i(
+        "Unzip: ${changed.size}/${zip.entries.size} entries in " +
+                "${SystemClock.elapsedRealtime() - started}ms"
+    )
+}
+
+private fun AssetZip.extractTo(e: AssetZip.Entry, out: File) {
+    val parent = requireNotNull(out.parentFile)
+    parent.mkdirs()
+    val tmp = File(parent, ".${out.name}.tmp")
+    val crc = CRC32()
+    CheckedInputStream(open(e), crc).use { ins ->
+        tmp.outputStream().use { ins.copyTo(it) }
+    }
+    if (crc.value != e.crc) {
+        tmp.delete()
+        throw ZipException("CRC mismatch: ${e.name}")
+    }
+    if (!tmp.renameTo(out))
+        throw IOException("rename failed: $tmp -> $out")
+}
+
+//name -> (crc, size)
+private fun readManifest(f: File): Map<String, Pair<Long, Long>> {
+    if (!f.exists())
+        return emptyMap()
+    return f.readLines().mapNotNull { line ->
+        val a = line.split('\t', limit = 3)
+        if (a.size != 3)
+            return@mapNotNull null
+        val crc = a[0].toLongOrNull(16) ?: return@mapNotNull null
+        val size = a[1].toLongOrNull() ?: return@mapNotNull null
+        a[2] to (crc to size)
+    }.toMap()
+}
+
+private fun writeManifest(f: File, entries: Collection<AssetZip.Entry>) {
+    val tmp = File(f.parentFile, "${f.name}.tmp")
+    tmp.bufferedWriter().use { w ->
+        entries.forEach { e ->
+            w.write("%08x\t%d\t%s\n".format(e.crc, e.size, e.name))
+        }
+    }
+    if (!tmp.renameTo(f))
+        throw IOException("rename failed: $tmp -> $f")
+}
@@ -0,0 +1,144 @@
+package org.peercast.core.util
+
+import android.app.Application
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.LinkProperties
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import android.os.Handler
+import android.os.HandlerThread
+import timber.log.Timber
+import java.io.PrintWriter
+import java.net.Inet4Address
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Wi-Fi/Ethernetの変化をまとめて、UPnPとPeerCast本体へ通知する。
+ *
+ * - onAvailable/onLost/onLinkPropertiesChangedが続いても、[debounceMillis]の間は待つ。
+ * - 待った後、インターフェイス、IPv4アドレス、ゲートウェイが前回と同じなら通知しない。
+ *   (IPv6の一時アドレスが変わるたびに、ポートを開け直さないため)
+ * - 通知は専用のスレッドから行う。
+ */
+class NetworkStateCoordinator(
+    a: Application,
+    private val debounceMillis: Long = DEBOUNCE_MILLIS,
+) {
+    data class Snapshot(
+        val interfaceName: String,
+        val addresses: List<String>,
+        val gateway: String?,
+    )
+
+    fun interface Listener {
+        /**
+         * @param old nullなら直前は接続していなかった。(登録時の通知と、再接続を区別しない)
+         * @param new nullならWi-Fi/Ethernetに接続していない
+         */
+        fun onNetworkChanged(old: Snapshot?, new: Snapshot?)
+    }
+
+    private val connMan = a.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+    private val handler = Handler(HandlerThread("NetworkState").also { it.start() }.looper)
+    private val listeners = CopyOnWriteArrayList<Listener>()
+
+    //以下はhandlerのスレッドからのみ触る
+    private val networks = LinkedHashMap<Network, LinkProperties?>()
+    @Volatile
+    private var last: Snapshot? = null
+    private var isPending = false
+
+    private val nReceived = AtomicLong()
+    private val nCoalesced = AtomicLong()
+    private val nUnchanged = AtomicLong()
+    private val nNotified = AtomicLong()
+
+    private val evaluate = Runnable {
+        isPending = false
+        val lp = networks.values.lastOrNull { it != null }
+        val new = lp?.toSnapshot()
+        if (new == last) {
+            nUnchanged.incrementAndGet()
+            return@Runnable
+        }
+        val old = last
+        last = new
+        nNotified.incrementAndGet()
+        Timber.i("network changed: $old -> $new")
+        listeners.forEach { it.onNetworkChanged(old, new) }
+    }
+
+    private fun onEvent(update: () -> Unit) {
+        nReceived.incrementAndGet()
+        handler.post {
+            update()
+            if (isPending) {
+                nCoalesced.incrementAndGet()
+                handler.removeCallbacks(evaluate)
+            }
+            isPending = true
+            handler.postDelayed(evaluate, debounceMillis)
+        }
+    }
+
+    init {
+        connMan.registerNetworkCallback(REQ_TYPE_WIFI_ETHERNET,
+            object : ConnectivityManager.NetworkCallback() {
+                override fun onAvailable(network: Network) {
+                    val lp = connMan.getLinkProperties(network)
+                    onEvent { networks[network] = lp }
+                }
+
+                override fun onLinkPropertiesChanged(network: Network, lp: LinkProperties) {
+                    onEvent { networks[network] = lp }
+                }
+
+                override fun onLost(network: Network) {
+                    onEvent { networks.remove(network) }
+                }
+            })
+    }
+
+    /**登録したときに接続していれば、すぐに(old=nullで)通知する。*/
+    fun addListener(l: Listener) {
+        listeners.add(l)
+        handler.post {
+            last?.let { l.onNetworkChanged(null, it) }
+        }
+    }
+
+    fun removeListener(l: Listener) {
+        listeners.remove(l)
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("Network state: ${last ?: "-"}")
+        pw.println(
+            "  events=${nReceived.get()}, notified=${nNotified.get()}, " +
+                    "suppressed: coalesced=${nCoalesced.get()}, unchanged=${nUnchanged.get()}"
+        )
+    }
+
+    companion object {
+        private const val DEBOUNCE_MILLIS = 2_000L
+
+        val REQ_TYPE_WIFI_ETHERNET = NetworkRequest.Builder()
+            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+            .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+            .build()!!
+
+        private fun LinkProperties.toSnapshot() = Snapshot(
+            interfaceName ?: "",
+            linkAddresses.map { it.address }
+                .filterIsInstance<Inet4Address>()
+                .mapNotNull { it.hostAddress }
+                .sorted(),
+            routes.firstOrNull {
+                it.isDefaultRoute && it.gateway is Inet4Address
+            }?.gateway?.hostAddress
+        )
+    }
+}
@@ -0,0 +1,120 @@
+// ------------------------------------------------
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// ------------------------------------------------
+
+#include "AsyncLogger.h"
+
+#include <cstdio>
+#include <cstring>
+#include <pthread.h>
+
+using namespace std;
+
+AsyncLogger::AsyncLogger(const char *tagPrefix) : _tagPrefix(tagPrefix) {
+    for (size_t i = 0; i < CAPACITY; i++)
+        _slots[i].sequence.store(i, memory_order_relaxed);
+    _thread = thread(&AsyncLogger::run, this);
+}
+
+AsyncLogger::~AsyncLogger() {
+    stop();
+}
+
+void AsyncLogger::log(int priority, const char *typeStr, const char *message) noexcept {
+    size_t pos = _enqueuePos.load(memory_order_relaxed);
+    Slot *slot;
+    for (;;) {
+        slot = &_slots[pos & (CAPACITY - 1)];
+        const size_t seq = slot->sequence.load(memory_order_acquire);
+        const intptr_t dif = (intptr_t) seq - (intptr_t) pos;
+        if (dif == 0) {
+            if (_enqueuePos.compare_exchange_weak(pos, pos + 1, memory_order_relaxed))
+                break;
+        } else if (dif < 0) {
+            //一杯
+            _dropped.fetch_add(1, memory_order_relaxed);
+            return;
+        } else {
+            pos = _enqueuePos.load(memory_order_relaxed);
+        }
+    }
+
+    slot->priority = priority;
+    slot->typeStr = typeStr;
+    ::strlcpy(slot->message, message, MESSAGE_SIZE);
+    //seq_cst: run()の_isWaitingの書き込みとtryPop()の読み込みと対になる。
+    //出力スレッドがこの行を見落として眠ることはない
+    slot->sequence.store(pos + 1, memory_order_seq_cst);
+    if (_isWaiting.load(memory_order_seq_cst)) {
+        //出力スレッドがwaitに入ってからnotifyする
+        { lock_guard<mutex> lock(_mutex); }
+        _cond.notify_one();
+    }
+}
+
+bool AsyncLogger::tryPop(Slot **slot) noexcept {
+    Slot *s = &_slots[_dequeuePos & (CAPACITY - 1)];
+    if (s->sequence.load(memory_order_seq_cst) != _dequeuePos + 1)
+        return false;
+    *slot = s;
+    return true;
+}
+
+void AsyncLogger::run() {
+    ::pthread_setname_np(::pthread_self(), "PeCaLogger");
+
+    uint64_t reportedDrops = 0;
+    for (;;) {
+        Slot *s;
+        while (tryPop(&s)) {
+            char tag[24];//tagは23文字まで
+            ::snprintf(tag, sizeof(tag), "%s[%s]", _tagPrefix, s->typeStr);
+            ::__android_log_write(s->priority, tag, s->message);
+
+            s->sequence.store(_dequeuePos + CAPACITY, memory_order_release);
+            _dequeuePos++;
+        }
+
+        const uint64_t drops = droppedCount();
+        if (drops != reportedDrops) {
+            ::__android_log_print(ANDROID_LOG_WARN, _tagPrefix,
+                                  "AsyncLogger: %llu messages dropped",
+                                  (unsigned long long) (drops - reportedDrops));
+            reportedDrops = drops;
+        }
+
+        if (_isStopped.load(memory_order_acquire)) {
+            //stop()より前に書かれたものは出力済み
+            if (!tryPop(&s))
+                break;
+            continue;
+        }
+
+        //空なら、log()かstop()に起こされるまで眠る
+        unique_lock<mutex> lock(_mutex);
+        _isWaiting.store(true, memory_order_seq_cst);
+        _cond.wait(lock, [this] {
+            Slot *s;
+            return tryPop(&s) || _isStopped.load(memory_order_acquire);
+        });
+        _isWaiting.store(false, memory_order_relaxed);
+    }
+}
+
+void AsyncLogger::stop() {
+    if (_isStopped.exchange(true))
+        return;
+    {
+        lock_guard<mutex> lock(_mutex);
+    }
+    _cond.notify_one();
+    if (_thread.joinable())
+        _thread.join();
+}
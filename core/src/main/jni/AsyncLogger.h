@@ -0,0 +1,75 @@
+// ------------------------------------------------
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// ------------------------------------------------
+
+#pragma once
+
+#include <android/log.h>
+#include <atomic>
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+
+/**
+ * リレーなどのスレッドから__android_log_printを呼ばないためのロガー。
+ *
+ *  - 書き込みはロックフリーのリングバッファ(bounded MPMC)へのコピーだけ。
+ *  - 1つのスレッドが取り出してlogcatへ出力する。
+ *  - バッファが一杯なら捨てて、droppedCount()を増やす。
+ *  - ログレベルでの絞り込みはしない。(PeerCast本体がvsnprintfの前に行う)
+ *  - 長い行は MESSAGE_SIZE - 1 バイトで切る。
+ * */
+class AsyncLogger {
+public:
+    static constexpr size_t CAPACITY = 512; //2の累乗
+    static constexpr size_t MESSAGE_SIZE = 512;
+
+    /**@param tagPrefix ex: "PeCaNt" -> "PeCaNt[DEBUG]"*/
+    explicit AsyncLogger(const char *tagPrefix);
+
+    ~AsyncLogger();
+
+    /**@param priority ANDROID_LOG_VERBOSE ... ANDROID_LOG_FATAL*/
+    void log(int priority, const char *typeStr, const char *message) noexcept;
+
+    uint64_t droppedCount() const noexcept {
+        return _dropped.load(std::memory_order_relaxed);
+    }
+
+    /**残りを出力してスレッドを終了する。*/
+    void stop();
+
+private:
+    struct Slot {
+        std::atomic<size_t> sequence;
+        int priority;
+        const char *typeStr; //静的な文字列
+        char message[MESSAGE_SIZE];
+    };
+
+    bool tryPop(Slot **slot) noexcept;
+
+    void run();
+
+    const char *const _tagPrefix;
+    Slot _slots[CAPACITY];
+    alignas(64) std::atomic<size_t> _enqueuePos{0};
+    alignas(64) size_t _dequeuePos = 0; //出力スレッドのみ
+
+    std::atomic<uint64_t> _dropped{0};
+
+    //出力スレッドが待っているときだけnotifyする。(待つときはタイムアウトしない)
+    std::atomic<bool> _isWaiting{false};
+    std::atomic<bool> _isStopped{false};
+    std::mutex _mutex;
+    std::condition_variable _cond;
+    std::thread _thread;
+};
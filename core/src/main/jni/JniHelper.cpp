@@ -10,11 +10,18 @@
 // ------------------------------------------------
 
 #include "JniHelper.h"
+#include "Utf8.h"
 #include "nativehelper/scoped_local_ref.h"
 #include <pthread.h>
 #include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <map>
+#include <mutex>
 #include <cstdio>
 #include <cstring>
+#include <memory>
+#include <strings.h>
 #include <cstdarg>
 #include <unistd.h>
 
@@ -26,16 +33,18 @@ static JavaVM *javaVM;
 static jclass clzString;
 static jmethodID midStringInitBS;
 
-jstring newJString(JNIEnv *env, const char *s, const char *encoding) {
-    CHECK_NOT_NULL(clzString);
-    CHECK_NOT_NULL(midStringInitBS);
+static jstring jUtf8; //"utf8" (GlobalRef)
 
-    if (s == nullptr)
-        return nullptr;
+static bool isUtf8(const char *encoding) {
+    return ::strcasecmp(encoding, "utf8") == 0 || ::strcasecmp(encoding, "utf-8") == 0;
+}
 
-    const jsize len = ::strlen(s);
+//new String(byte[], encoding)
+static jstring newJStringFromBytes(JNIEnv *env, const char *s, jsize len, const char *encoding) {
     ScopedLocalRef<jbyteArray> jBuf(env, env->NewByteArray(len));
-    ScopedLocalRef<jstring> jEncoding(env, env->NewStringUTF(encoding));
+    ScopedLocalRef<jstring> jEncoding(env, isUtf8(encoding) ?
+                                           (jstring) env->NewLocalRef(jUtf8) :
+                                           env->NewStringUTF(encoding));
 
     if (jBuf == nullptr || jEncoding == nullptr)
         return nullptr;
@@ -48,6 +57,36 @@ jstring newJString(JNIEnv *env, const char *s, const char *encoding) {
     );
 }
 
+jstring newJString(JNIEnv *env, const char *s, const char *encoding) {
+    CHECK_NOT_NULL(clzString);
+    CHECK_NOT_NULL(midStringInitBS);
+
+    if (s == nullptr)
+        return nullptr;
+
+    const size_t len = ::strlen(s);
+
+    //UTF-8ならJNIのアロケーションは1回で済む
+    if (isUtf8(encoding)) {
+        switch (utf8::classify(s, len)) {
+            case utf8::ASCII:
+            case utf8::BMP:
+                return env->NewStringUTF(s);
+            case utf8::SUPPLEMENTARY: {
+                //Modified UTF-8では4バイトの文字を表せない
+                unique_ptr<char16_t[]> buf(new char16_t[len]);
+                const size_t n = utf8::toUtf16(s, len, buf.get());
+                return env->NewString(reinterpret_cast<const jchar *>(buf.get()), n);
+            }
+            case utf8::INVALID:
+                //不正なバイト列はStringに置換文字にしてもらう
+                break;
+        }
+    }
+
+    return newJStringFromBytes(env, s, (jsize) len, encoding);
+}
+
 JNIEnv *getJniEnv() {
     //必ずJAVAアタッチ済スレッドから呼ばれること。
     JNIEnv *env;
@@ -60,6 +99,13 @@ JNIEnv *getJniEnv() {
 
 static std::atomic<int> nAttached;
 
+//アタッチ中のスレッド。終了時の待機とログに使う
+static struct {
+    std::mutex mutex;
+    std::condition_variable detached;
+    std::map<pid_t, std::string> names; //tid -> スレッド名
+} attachedThreads;
+
 struct ThreadSpecific {
     ThreadSpecific() : _attached(false) {
         JNIEnv *env;
@@ -75,7 +121,11 @@ struct ThreadSpecific {
         r = javaVM->AttachCurrentThread(&env, nullptr);
         if (r == JNI_OK) {
             _attached = true;
-            ++nAttached;
+            {
+                std::lock_guard<std::mutex> lock(attachedThreads.mutex);
+                attachedThreads.names[gettid()] = "";
+                ++nAttached;
+            }
             LOGV("AttachCurrentThread success: tid=%d", gettid());
         } else {
             LOGE("AttachCurrentThread failed: tid=%d", gettid());
@@ -85,7 +135,13 @@ struct ThreadSpecific {
     ~ThreadSpecific() {
         if (_attached) {
             javaVM->DetachCurrentThread();
-            int remaining = --nAttached;
+            int remaining;
+            {
+                std::lock_guard<std::mutex> lock(attachedThreads.mutex);
+                attachedThreads.names.erase(gettid());
+                remaining = --nAttached;
+            }
+            attachedThreads.detached.notify_all();
             LOGV("DetachCurrentThread: tid=%d (remaining=%d)", gettid(), remaining);
         }
     }
@@ -121,6 +177,10 @@ void attachPosixThread(const char *name) {
         ::pthread_setname_np(
                 ::pthread_self(), name
         );
+        std::lock_guard<std::mutex> lock(attachedThreads.mutex);
+        auto it = attachedThreads.names.find(gettid());
+        if (it != attachedThreads.names.end())
+            it->second = name;
     }
 }
 
@@ -128,6 +188,29 @@ int getRemainingAttachedThreads() {
     return nAttached;
 }
 
+bool waitForAttachedThreads(int timeoutMillis) {
+    std::unique_lock<std::mutex> lock(attachedThreads.mutex);
+    return attachedThreads.detached.wait_for(
+            lock, std::chrono::milliseconds(timeoutMillis),
+            [] { return nAttached == 0; }
+    );
+}
+
+std::vector<std::pair<pid_t, std::string>> getAttachedThreads() {
+    std::lock_guard<std::mutex> lock(attachedThreads.mutex);
+    return {attachedThreads.names.begin(), attachedThreads.names.end()};
+}
+
+std::string getAttachedThreadNames() {
+    std::string s;
+    for (auto &kv: getAttachedThreads()) {
+        if (!s.empty())
+            s += ", ";
+        s += strprintf("%s(tid=%d)", kv.second.empty() ? "?" : kv.second.c_str(), kv.first);
+    }
+    return s;
+}
+
 void killMyself() {
     auto env = getJniEnv();
     auto clz = ScopedLocalRef<jclass>(env,
@@ -147,6 +230,8 @@ static void initJString(JNIEnv *env) {
     midStringInitBS = CHECK_NOT_NULL(
             env->GetMethodID(clz.get(), "<init>", "([BLjava/lang/String;)V")
     );
+    ScopedLocalRef<jstring> jStr(env, env->NewStringUTF("utf8"));
+    jUtf8 = (jstring) env->NewGlobalRef(CHECK_NOT_NULL(jStr.get()));
 }
 
 string strprintf(const char *format, ...) {
@@ -168,6 +253,27 @@ string strprintf(const char *format, ...) {
     return buf.get();
 }
 
+static std::mutex countersMutex;
+static JniCallCounter *counters;
+
+JniCallCounter::JniCallCounter(const char *name) : _name(name) {
+    std::lock_guard<std::mutex> lock(countersMutex);
+    _next = counters;
+    counters = this;
+}
+
+string JniCallCounter::dumpAll() {
+    std::lock_guard<std::mutex> lock(countersMutex);
+    string s;
+    for (auto c = counters; c != nullptr; c = c->_next) {
+        uint64_t n = c->_count;
+        uint64_t nanos = c->_nanos;
+        s += strprintf("%s: %llu calls, %.1fus avg\n", c->_name,
+                       (unsigned long long) n, n > 0 ? nanos / 1000.0 / n : 0.0);
+    }
+    return s;
+}
+
 jint initJniHelper(JavaVM *vm) {
     if (!threadAttacher.init())
         return JNI_ERR;
@@ -13,7 +13,12 @@
 
 #include <jni.h>
 #include <android/log.h>
+#include <atomic>
+#include <chrono>
 #include <string>
+#include <sys/types.h>
+#include <utility>
+#include <vector>
 
 #include "nativehelper/nativehelper_utils.h"
 
@@ -52,6 +57,15 @@ void attachPosixThread(const char *name = nullptr);
 //現在、関連付けられている数
 int getRemainingAttachedThreads();
 
+//関連付けられたスレッドがすべて終了するまで待つ。タイムアウトならfalse
+bool waitForAttachedThreads(int timeoutMillis);
+
+//関連付けられているスレッドの名前 ex: "ChNotify(tid=123), ?(tid=456)"
+std::string getAttachedThreadNames();
+
+//関連付けられているスレッドの(tid, 名前)
+std::vector<std::pair<pid_t, std::string>> getAttachedThreads();
+
 //自分をklllする
 void killMyself();
 
@@ -61,3 +75,45 @@ std::string strprintf(const char *format, ...)  __attribute__((__format__(printf
 
 jint initJniHelper(JavaVM *vm);
 
+/**
+ * JNIの呼び出し回数と、ネイティブ側での所要時間を数える。
+ * 関数の先頭に COUNT_JNI_CALL("nativeGetPort"); のように置く。
+ * */
+class JniCallCounter {
+public:
+    explicit JniCallCounter(const char *name);
+
+    void add(int64_t nanos) {
+        ++_count;
+        _nanos += nanos;
+    }
+
+    //すべてのカウンタ ex: "nativeGetPort: 12 calls, 0.4us avg"
+    static std::string dumpAll();
+
+private:
+    const char *const _name;
+    std::atomic<uint64_t> _count{0};
+    std::atomic<uint64_t> _nanos{0};
+    JniCallCounter *_next;
+
+    DISALLOW_COPY_AND_ASSIGN(JniCallCounter);
+};
+
+class ScopedJniCall {
+    JniCallCounter &_counter;
+    const std::chrono::steady_clock::time_point _start;
+public:
+    explicit ScopedJniCall(JniCallCounter &counter) :
+            _counter(counter), _start(std::chrono::steady_clock::now()) {
+    }
+
+    ~ScopedJniCall() {
+        _counter.add(std::chrono::duration_cast<std::chrono::nanoseconds>(
+                std::chrono::steady_clock::now() - _start).count());
+    }
+};
+
+#define COUNT_JNI_CALL(name) \
+    static JniCallCounter _jniCallCounter(name); \
+    ScopedJniCall _jniCall(_jniCallCounter)
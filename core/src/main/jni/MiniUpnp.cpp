@@ -19,12 +19,15 @@
 #include <upnpcommands.h>
 #include <upnperrors.h>
 #include <upnpdev.h>
+#include <portlistingparse.h>
 #include <cstring>
 #include <cstdio>
+#include <climits>
 #include <cstdlib>
 #include <memory>
 #include <exception>
 #include <regex>
+#include <vector>
 
 using namespace std;
 
@@ -156,6 +159,33 @@ public:
     }
 
 
+    /**
+     * 前回のIGDのコントロールURLへ直接接続する。SSDPの検索(最大3秒)も、記述(XML)の取得も省く。
+     * GetExternalIPAddressが成功すればtrue (SOAPの1往復)
+     * */
+    bool connect(const char *descUrl, const char *controlUrl,
+                 const char *serviceType, const char *lanAddress) {
+        urls.reset(new UPNPUrls{});
+        datas.reset(new IGDdatas{});
+        //FreeUPNPUrlsで解放される
+        urls->rootdescURL = ::strdup(descUrl);
+        urls->controlURL = ::strdup(controlUrl);
+        ::strlcpy(datas->first.servicetype, serviceType, sizeof datas->first.servicetype);
+        ::strlcpy(lanAddr, lanAddress, sizeof lanAddr);
+
+        char extAddr[40]{};
+        int err = ::UPNP_GetExternalIPAddress(controlUrl, serviceType, extAddr);
+        if (err == 0 && extAddr[0] != '\0' && ::strcmp(extAddr, "0.0.0.0") != 0) {
+            LOGI("UPnP device (cached): [control: %s]", controlUrl);
+            return true;
+        }
+        LOGI("cached IGD is not available: [control: %s] err=%d", controlUrl, err);
+        urls.reset();
+        datas.reset(new IGDdatas{});
+        lanAddr[0] = '\0';
+        return false;
+    }
+
     void addPort(int port, const char *desc, int duration) {
         LOGV("%s: %d", __func__, port);
         if (!urls)
@@ -217,10 +247,83 @@ public:
         return j;
     }
 
-    nlohmann::json getPortMap(int index) {
+    /**MiniUpnpPortMapと同じ*/
+    struct PortMap {
+        int externalPort;
+        string internalClient;
+        int internalPort;
+        string protocol;
+        string description;
+        bool enabled;
+        string remoteHost;
+        int leaseDuration;
+    };
+
+    /**
+     * IGDv2ならGetListOfPortMappingsで一度に取得する。
+     * 使えなければ、GetGenericPortMappingEntryで1つずつ取得する。
+     * */
+    vector<PortMap> getPortMaps() {
         if (!urls)
             throw NullError();
 
+        vector<PortMap> entries;
+        if (::strstr(datas->first.servicetype, "WANIPConnection:2") != nullptr) {
+            int err = getListOfPortMappings(IP_PROTOCOL_TCP, entries);
+            if (err == 0)
+                err = getListOfPortMappings(IP_PROTOCOL_UDP, entries);
+            if (err == 0)
+                return entries;
+            LOGI("GetListOfPortMappings failed (%d). fallback to GetGenericPortMappingEntry", err);
+            entries.clear();
+        }
+
+        for (int i = 0; i < 128; i++) {
+            try {
+                entries.push_back(getPortMap(i));
+            } catch (const UpnpError &e) {
+                //SpecifiedArrayIndexInvalid
+                if (e.err() == 713 || !entries.empty())
+                    break;
+                throw;
+            }
+        }
+        return entries;
+    }
+
+    const char *getIpAddress() const noexcept { return lanAddr; }
+
+    const char *getDescUrl() const noexcept { return urls ? urls->rootdescURL : ""; }
+
+    const char *getControlUrl() const noexcept { return urls ? urls->controlURL : ""; }
+
+    const char *getServiceType() const noexcept { return datas->first.servicetype; }
+
+private:
+    //NoSuchEntryInArray(714)は0件
+    int getListOfPortMappings(const char *protocol, vector<PortMap> &entries) {
+        PortMappingParserData data{};
+        int err = ::UPNP_GetListOfPortMappings(urls->controlURL, datas->first.servicetype,
+                                               "0", "65535", protocol, "1000", &data);
+        if (err == 0) {
+            for (auto m = data.l_head; m != nullptr; m = m->l_next) {
+                entries.push_back({
+                                          m->externalPort,
+                                          m->internalClient,
+                                          m->internalPort,
+                                          m->protocol,
+                                          m->description,
+                                          m->enabled != 0,
+                                          m->remoteHost,
+                                          (int) min<UNSIGNED_INTEGER>(m->leaseTime, INT_MAX),
+                                  });
+            }
+        }
+        ::FreePortListing(&data);
+        return err == 714 ? 0 : err;
+    }
+
+    PortMap getPortMap(int index) {
         const string sIndex = to_string(index);
 
         char extPort[6]{};
@@ -238,35 +341,21 @@ public:
                                                     extPort, intClient, intPort,
                                                     protocol, desc, enabled,
                                                     rHost, duration);
-/*
-            class MiniUpnpPortMap(
-                override val externalPort: Int,
-                override val internalClient: String,
-                override val internalPort: Int,
-                override val protocol: String,
-                override val description: String,
-                override val enabled: Boolean,
-                override val remoteHost: String,
-                override val leaseDuration: Int,
-            )
-*/
         if (err != 0)
             throw UpnpError(err);
 
         return {
-                {"externalPort",   ::upnpStrToNumber(extPort, 0, 0xffff)},
-                {"internalClient", intClient},
-                {"internalPort",   ::upnpStrToNumber(intPort, 0, 0xffff)},
-                {"protocol",       protocol},
-                {"description",    desc},
-                {"enabled",        ::upnpStrToBool(enabled)},
-                {"remoteHost",     rHost},
-                {"leaseDuration",  ::upnpStrToNumber(duration, 0)},
+                (int) ::upnpStrToNumber(extPort, 0, 0xffff),
+                intClient,
+                (int) ::upnpStrToNumber(intPort, 0, 0xffff),
+                protocol,
+                desc,
+                ::upnpStrToBool(enabled),
+                rHost,
+                (int) ::upnpStrToNumber(duration, 0, INT_MAX),
         };
     }
 
-    const char *getIpAddress() const noexcept { return lanAddr; }
-
 };
 
 
@@ -289,32 +378,96 @@ static struct {
         delete reinterpret_cast<MiniUpnp *>(env->GetLongField(obj, _nativeInstance));
     }
 
+    jobjectArray newPortMapArray(JNIEnv *env, const vector<MiniUpnp::PortMap> &entries) {
+        jobjectArray a = env->NewObjectArray((jsize) entries.size(), _clzPortMap, nullptr);
+        if (a == nullptr)
+            return nullptr;
+        for (size_t i = 0; i < entries.size(); i++) {
+            auto &e = entries[i];
+            ScopedLocalFrame frame(env);
+            jobject m = env->NewObject(_clzPortMap, _initPortMap,
+                                       e.externalPort,
+                                       newJString(env, e.internalClient.c_str()),
+                                       e.internalPort,
+                                       newJString(env, e.protocol.c_str()),
+                                       newJString(env, e.description.c_str()),
+                                       (jboolean) e.enabled,
+                                       newJString(env, e.remoteHost.c_str()),
+                                       e.leaseDuration);
+            if (m == nullptr)
+                return nullptr;
+            env->SetObjectArrayElement(a, (jsize) i, m);
+        }
+        return a;
+    }
+
     void initClassCache(JNIEnv *env, jclass clz) noexcept {
         _nativeInstance = CHECK_NOT_NULL(
                 env->GetFieldID(clz, "nativeInstance", "J")
         );
+        ScopedLocalRef<jclass> clzPortMap(env, CHECK_NOT_NULL(
+                env->FindClass("org/peercast/core/upnp/MiniUpnpPortMap")
+        ));
+        _clzPortMap = static_cast<jclass>(env->NewGlobalRef(clzPortMap.get()));
+        _initPortMap = CHECK_NOT_NULL(env->GetMethodID(
+                _clzPortMap, "<init>",
+                "(ILjava/lang/String;ILjava/lang/String;Ljava/lang/String;ZLjava/lang/String;I)V"
+        ));
     }
 
 private:
     jfieldID _nativeInstance;
+    jclass _clzPortMap;
+    jmethodID _initPortMap;
 } classCache;
 
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_initInstance(JNIEnv *env, jobject thiz) {
+//前回のIGDに接続できればtrue。できなければSSDPで検索する
+static jboolean initInstance(JNIEnv *env, jobject thiz, jstring descUrl, jstring controlUrl,
+                             jstring serviceType, jstring lanAddress) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.initInstance");
     try {
-        classCache.newMiniUpnp(env, thiz)->discover();
+        auto m = classCache.newMiniUpnp(env, thiz);
+        if (descUrl != nullptr && controlUrl != nullptr &&
+            serviceType != nullptr && lanAddress != nullptr &&
+            m->connect(ScopedUtfChars(env, descUrl).c_str(),
+                       ScopedUtfChars(env, controlUrl).c_str(),
+                       ScopedUtfChars(env, serviceType).c_str(),
+                       ScopedUtfChars(env, lanAddress).c_str()))
+            return JNI_TRUE;
+        m->discover();
+    } catch (const BaseError &e) {
+        e.throwJniException(env);
+    }
+    return JNI_FALSE;
+}
+
+//[descUrl, controlUrl, serviceType, lanAddr]
+static jobjectArray getIgdInfo(JNIEnv *env, jobject thiz) {
+    LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.getIgdInfo");
+    try {
+        auto m = classCache.getMiniUpnp(env, thiz);
+        const char *values[] = {
+                m->getDescUrl(), m->getControlUrl(), m->getServiceType(), m->getIpAddress()
+        };
+        ScopedLocalRef<jclass> clzString(env, env->FindClass("java/lang/String"));
+        jobjectArray a = env->NewObjectArray(4, clzString.get(), nullptr);
+        for (int i = 0; a != nullptr && i < 4; i++) {
+            ScopedLocalRef<jstring> s(env, newJString(env, values[i]));
+            env->SetObjectArrayElement(a, i, s.get());
+        }
+        return a;
     } catch (const BaseError &e) {
         e.throwJniException(env);
+        return nullptr;
     }
 }
 
-extern "C"
-JNIEXPORT jstring JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_getIpAddress(JNIEnv *env, jobject thiz) {
+static jstring getIpAddress(JNIEnv *env, jobject thiz) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.getIpAddress");
     try {
         return newJString(env, classCache.getMiniUpnp(env, thiz)->getIpAddress());
     } catch (const BaseError &e) {
@@ -324,11 +477,10 @@ Java_org_peercast_core_upnp_MiniUpnp_getIpAddress(JNIEnv *env, jobject thiz) {
 }
 
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_addPort(JNIEnv *env, jobject thiz,
-                                             jint port, jstring desc, jint duration) {
+static void addPort(JNIEnv *env, jobject thiz,
+                    jint port, jstring desc, jint duration) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.addPort");
     try {
         classCache.getMiniUpnp(env, thiz)->addPort(
                 port,
@@ -339,10 +491,9 @@ Java_org_peercast_core_upnp_MiniUpnp_addPort(JNIEnv *env, jobject thiz,
     }
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_removePort(JNIEnv *env, jobject thiz, jint port) {
+static void removePort(JNIEnv *env, jobject thiz, jint port) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.removePort");
     try {
         classCache.getMiniUpnp(env, thiz)->removePort(port);
     } catch (const BaseError &e) {
@@ -350,33 +501,21 @@ Java_org_peercast_core_upnp_MiniUpnp_removePort(JNIEnv *env, jobject thiz, jint
     }
 }
 
-extern "C"
-JNIEXPORT jstring JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_getPortMapsJson(JNIEnv *env, jobject thiz) {
+static jobjectArray getPortMapsArray(JNIEnv *env, jobject thiz) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.getPortMapsArray");
     try {
-        auto entries = nlohmann::json::array();
-        for (int i = 0; i < 128; i++) {
-            try {
-                entries += classCache.getMiniUpnp(env, thiz)->getPortMap(i);
-            } catch (const UpnpError &e) {
-                //SpecifiedArrayIndexInvalid
-                if (e.err() == 713 || !entries.empty())
-                    break;
-                throw;
-            }
-        }
-        return newJString(env, entries.dump().data());
+        auto entries = classCache.getMiniUpnp(env, thiz)->getPortMaps();
+        return classCache.newPortMapArray(env, entries);
     } catch (const BaseError &e) {
         e.throwJniException(env);
         return nullptr;
     }
 }
 
-extern "C"
-JNIEXPORT jstring JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_getStatusesJson(JNIEnv *env, jobject thiz) {
+static jstring getStatusesJson(JNIEnv *env, jobject thiz) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.getStatusesJson");
     try {
         auto j = classCache.getMiniUpnp(env, thiz)->getStatuses();
         return newJString(env, j.dump().c_str());
@@ -386,21 +525,48 @@ Java_org_peercast_core_upnp_MiniUpnp_getStatusesJson(JNIEnv *env, jobject thiz)
     }
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_finalize(JNIEnv *env, jobject thiz) {
+static void finalize(JNIEnv *env, jobject thiz) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.finalize");
     classCache.deleteMiniUpnp(env, thiz);
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_upnp_MiniUpnp_initClass(JNIEnv *env, jclass clazz) {
+static void initClass(JNIEnv *env, jclass clazz) {
     LOGV("%s", __func__);
+    COUNT_JNI_CALL("MiniUpnp.initClass");
     classCache.initClassCache(env, clazz);
 }
 
+//libminiupnpのカウンタ。(libpeercastとは別)
+static jstring getJniStats(JNIEnv *env, jclass clazz) {
+    COUNT_JNI_CALL("MiniUpnp.getJniStats");
+    return newJString(env, JniCallCounter::dumpAll().c_str());
+}
+
+static const JNINativeMethod gMethods[] = {
+        {"initInstance",     "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)Z", (void *) initInstance},
+        {"getIpAddress",     "()Ljava/lang/String;",                        (void *) getIpAddress},
+        {"getIgdInfo",       "()[Ljava/lang/String;",                       (void *) getIgdInfo},
+        {"addPort",          "(ILjava/lang/String;I)V",                     (void *) addPort},
+        {"removePort",       "(I)V",                                        (void *) removePort},
+        {"getPortMapsArray", "()[Lorg/peercast/core/upnp/MiniUpnpPortMap;", (void *) getPortMapsArray},
+        {"getStatusesJson",  "()Ljava/lang/String;",                        (void *) getStatusesJson},
+        {"finalize",         "()V",                                         (void *) finalize},
+        {"initClass",        "()V",                                         (void *) initClass},
+        {"getJniStats",      "()Ljava/lang/String;",                        (void *) getJniStats},
+};
+
 extern "C" JNIEXPORT jint JNICALL
 JNI_OnLoad(JavaVM *vm, void *reserved) {
-    return initJniHelper(vm) == JNI_OK ? JNI_VERSION_1_6 : -1;
+    if (initJniHelper(vm) != JNI_OK)
+        return -1;
+
+    JNIEnv *env = ::getJniEnv();
+    ScopedLocalRef<jclass> clz(env, env->FindClass("org/peercast/core/upnp/MiniUpnp"));
+    if (clz == nullptr ||
+        env->RegisterNatives(clz.get(), gMethods, sizeof(gMethods) / sizeof(gMethods[0])) != JNI_OK) {
+        LOGE("RegisterNatives failed.");
+        return -1;
+    }
+    return JNI_VERSION_1_6;
 }
@@ -15,17 +15,30 @@
 // ------------------------------------------------
 
 #include <unistd.h>
+#include <chrono>
+#include <condition_variable>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <unordered_map>
+#include <vector>
 #include "unix/usys.h"
 
 #include "peercast.h"
 #include "stats.h"
 
 #include "JniHelper.h"
+#include "AsyncLogger.h"
+#include "ThreadPriority.h"
 #include "nativehelper/scoped_utf_chars.h"
 #include "nativehelper/scoped_local_frame.h"
+#include "nativehelper/scoped_local_ref.h"
 
 #define TAG "PeCaNt"
 
+//nativeQuitでスレッドの終了を待つ最大の時間
+#define QUIT_TIMEOUT_MS 3000
+
 using namespace std;
 
 /**
@@ -53,6 +66,7 @@ public:
     void APICALL notifyMessage(JNIEnv *env, jobject this_,
                                ServMgr::NOTIFY_TYPE tNotify,
                                const char *message) {
+        COUNT_JNI_CALL("(up) notifyMessage");
         ScopedLocalFrame frame(env);
         env->CallVoidMethod(this_, _notifyMessage, tNotify, newJString(env, message));
     }
@@ -65,6 +79,7 @@ public:
 
     void notifyChannel(JNIEnv *env, jobject this_, NotifyType notifyType,
                        const string &chId, const string &jsonChannelInfo) {
+        COUNT_JNI_CALL("(up) notifyChannel");
         ScopedLocalFrame frame(env);
         env->CallVoidMethod(this_, _notifyChannel,
                             notifyType,
@@ -75,6 +90,61 @@ public:
 } classCache;
 
 
+/**
+ * Binderスレッドやメインスレッドから呼ばれるnativeと、nativeQuitでの解放が重ならないようにする。
+ * (nativeExecutor以外から呼ばれると、servMgr, chanMgrを確かめた直後に解放されることがある)
+ * */
+static class RunningGuard {
+    mutex _mutex;
+    condition_variable _cond;
+    int _inFlight = 0;
+    bool _isQuitting = false;
+public:
+    //終了処理中ならfalseを返す
+    bool enter() {
+        lock_guard<mutex> lock(_mutex);
+        if (_isQuitting)
+            return false;
+        ++_inFlight;
+        return true;
+    }
+
+    void leave() {
+        {
+            lock_guard<mutex> lock(_mutex);
+            --_inFlight;
+        }
+        _cond.notify_all();
+    }
+
+    void start() {
+        lock_guard<mutex> lock(_mutex);
+        _isQuitting = false;
+    }
+
+    //以降のenter()を失敗させ、実行中のものが終わるのを待つ
+    void quit() {
+        unique_lock<mutex> lock(_mutex);
+        _isQuitting = true;
+        _cond.wait(lock, [this] { return _inFlight == 0; });
+    }
+} runningGuard;
+
+//スコープの間、nativeQuitに解放させない
+class ScopedRunning {
+    const bool _entered;
+public:
+    ScopedRunning() : _entered(runningGuard.enter()) {}
+
+    ~ScopedRunning() {
+        if (_entered)
+            runningGuard.leave();
+    }
+
+    explicit operator bool() const { return _entered; }
+};
+
+
 class ASys : public USys {
 public:
     void exit() override {
@@ -87,26 +157,152 @@ public:
 
     void setThreadName(const char *name) override {
         ::attachPosixThread(name);
+        threadPriorityPolicy.apply(name);
     }
 };
 
 
 #include "jrpc.h"
 
+/**
+ * channelStart/Update/StopをまとめてJava側へ送る。
+ *  - UPDATEはチャンネルごとに最新のものだけを残し、interval毎に送る。
+ *  - START/STOPはすぐに送る。それより前に溜まっているUPDATEも順番どおりに送る。
+ *  - intervalが0以下なら、まとめずに呼び出したスレッドから送る。
+ * */
+class ChannelNotifyQueue {
+public:
+    typedef PeerCastServiceClassCache::NotifyType NotifyType;
+    typedef function<void(NotifyType, ChanInfo &)> Sender;
+
+    ChannelNotifyQueue(Sender sender, int intervalMillis) :
+            _sender(std::move(sender)),
+            _interval(intervalMillis) {
+        if (_interval.count() > 0)
+            _thread = thread(&ChannelNotifyQueue::run, this);
+    }
+
+    ~ChannelNotifyQueue() {
+        stop();
+    }
+
+    void push(NotifyType type, ChanInfo *info) {
+        if (_interval.count() > 0) {
+            lock_guard<mutex> lock(_mutex);
+            if (!_stopped) {
+                enqueue(type, *info);
+                return;
+            }
+        }
+        _sender(type, *info);
+    }
+
+    /**溜まっているものを送ってスレッドを終了する。以降はすぐに送る。*/
+    void stop() {
+        {
+            lock_guard<mutex> lock(_mutex);
+            if (_stopped)
+                return;
+            _stopped = true;
+        }
+        _cond.notify_one();
+        if (_thread.joinable())
+            _thread.join();
+        LOGI("ChannelNotifyQueue: received=%u, sent=%u", _received, _sent);
+    }
+
+private:
+    struct Event {
+        NotifyType type;
+        ChanInfo info;
+    };
+
+    void enqueue(NotifyType type, const ChanInfo &info) {
+        const string id = info.id.str();
+        ++_received;
+        if (type == PeerCastServiceClassCache::NOTIFY_CHANNEL_UPDATE) {
+            auto it = _pendingUpdates.find(id);
+            if (it != _pendingUpdates.end()) {
+                _events[it->second].info = info;
+                return;
+            }
+            _pendingUpdates[id] = _events.size();
+            _events.push_back({type, info});
+        } else {
+            //この後のUPDATEはSTART/STOPを追い越さない
+            _pendingUpdates.erase(id);
+            _events.push_back({type, info});
+            _hasStartStop = true;
+            _cond.notify_one();
+        }
+    }
+
+    void run() {
+        ::attachPosixThread("ChNotify");
+
+        unique_lock<mutex> lock(_mutex);
+        for (;;) {
+            _cond.wait(lock, [this] { return _stopped || !_events.empty(); });
+            if (_events.empty())
+                break;
+            //UPDATEだけなら前回送ってからintervalが経つまで待つ
+            _cond.wait_until(lock, _lastFlush + _interval, [this] {
+                return _stopped || _hasStartStop;
+            });
+
+            vector<Event> events;
+            events.swap(_events);
+            _pendingUpdates.clear();
+            _hasStartStop = false;
+
+            lock.unlock();
+            for (auto &e : events)
+                _sender(e.type, e.info);
+            lock.lock();
+
+            _sent += events.size();
+            _lastFlush = chrono::steady_clock::now();
+        }
+    }
+
+    const Sender _sender;
+    const chrono::milliseconds _interval;
+    thread _thread;
+
+    mutex _mutex;
+    condition_variable _cond;
+    vector<Event> _events;
+    unordered_map<string, size_t> _pendingUpdates; //chId -> _eventsの位置
+    bool _hasStartStop = false;
+    bool _stopped = false;
+    chrono::steady_clock::time_point _lastFlush;
+
+    unsigned int _received = 0;
+    unsigned int _sent = 0;
+};
+
 class AndroidPeercastApp : public PeercastApplication {
     jobject _instance; //Instance of PeerCastService
     const string _iniPath;
     const string _resourceDirPath;
+    //ChNotifyスレッドより後に破棄する
+    AsyncLogger _logger;
+    ChannelNotifyQueue _channelNotifyQueue;
 public:
-    AndroidPeercastApp(jobject jthis, const string filesDirPath) :
+    AndroidPeercastApp(jobject jthis, const string filesDirPath, int channelNotifyInterval) :
             _iniPath(filesDirPath + "/peercast.ini"),
-            _resourceDirPath(filesDirPath + "/") {
+            _resourceDirPath(filesDirPath + "/"),
+            _logger(TAG),
+            _channelNotifyQueue([this](PeerCastServiceClassCache::NotifyType type, ChanInfo &info) {
+                sendNotifyChannel(type, info);
+            }, channelNotifyInterval) {
         JNIEnv *env = ::getJniEnv();
         _instance = env->NewGlobalRef(jthis);
         LOGD("IniFilePath=%s, ResourceDir=%s", _iniPath.data(), _resourceDirPath.data());
     }
 
     ~AndroidPeercastApp() override {
+        _channelNotifyQueue.stop();
         JNIEnv *env = ::getJniEnv();
         env->DeleteGlobalRef(_instance);
     }
@@ -135,12 +331,17 @@ public:
                 0, //	T_OFF=7 未使用?
         };
 
-        if (priorities[t] == 0)
+        //ログレベル(servMgrの設定。JSON-RPCのsetLogSettings)による絞り込みは、
+        //PeerCast本体がvsnprintfの前に済ませている。ここに来るのは出力するものだけ。
+        //tagの書式化とlogcatへの出力は出力スレッドで行う
+        const int priority = priorities[t];
+        if (priority == 0)
             return;
+        _logger.log(priority, LogBuffer::getTypeStr(t), str);
+    }
 
-        char tag[24];//tagは23文字まで
-        ::snprintf(tag, sizeof(tag), "%s[%s]", TAG, LogBuffer::getTypeStr(t));
-        ::__android_log_print(priorities[t], tag, "%s", str);
+    uint64_t getDroppedLogCount() const {
+        return _logger.droppedCount();
     }
 
     /**
@@ -159,26 +360,31 @@ public:
     *    -> (Java) notifyChannel(int, String)
     */
     void APICALL channelStart(ChanInfo *info) final {
-        notifyChannel(PeerCastServiceClassCache::NOTIFY_CHANNEL_START, info);
+        _channelNotifyQueue.push(PeerCastServiceClassCache::NOTIFY_CHANNEL_START, info);
     }
 
     void APICALL channelUpdate(ChanInfo *info) final {
-        notifyChannel(PeerCastServiceClassCache::NOTIFY_CHANNEL_UPDATE, info);
+        _channelNotifyQueue.push(PeerCastServiceClassCache::NOTIFY_CHANNEL_UPDATE, info);
     }
 
     void APICALL channelStop(ChanInfo *info) final {
-        notifyChannel(PeerCastServiceClassCache::NOTIFY_CHANNEL_STOP, info);
+        _channelNotifyQueue.push(PeerCastServiceClassCache::NOTIFY_CHANNEL_STOP, info);
+    }
+
+    /**ChNotifyスレッドを終了する。以降の通知は呼び出したスレッドから送る。*/
+    void stopChannelNotifyQueue() {
+        _channelNotifyQueue.stop();
     }
 
 private:
-    void notifyChannel(PeerCastServiceClassCache::NotifyType notifyType, ChanInfo *info) {
+    void sendNotifyChannel(PeerCastServiceClassCache::NotifyType notifyType, ChanInfo &info) {
         JNIEnv *env = ::getJniEnv();
         JrpcApi api;
         classCache.notifyChannel(env,
                                  _instance,
                                  notifyType,
-                                 info->id.str(),
-                                 api.to_json(*info).dump());
+                                 info.id.str(),
+                                 api.to_json(info).dump());
     }
 };
 
@@ -199,9 +405,10 @@ public:
 };
 
 
-extern "C" JNIEXPORT void JNICALL
-Java_org_peercast_core_PeerCastService_nativeStart(JNIEnv *env, jobject jthis,
-                                                   jstring filesDirPath) {
+static void nativeStart(JNIEnv *env, jobject jthis,
+                        jstring filesDirPath,
+                        jint channelNotifyInterval) {
+    COUNT_JNI_CALL("nativeStart");
 
     if (peercastApp) {
         LOGE("PeerCast has already been running!");
@@ -209,23 +416,43 @@ Java_org_peercast_core_PeerCastService_nativeStart(JNIEnv *env, jobject jthis,
     }
 
     peercastApp = new AndroidPeercastApp(jthis,
-                                         ScopedUtfChars(env, filesDirPath).c_str()
+                                         ScopedUtfChars(env, filesDirPath).c_str(),
+                                         channelNotifyInterval
     );
     peercastInst = new AndroidPeercastInst();
 
     peercastInst->init();
+    runningGuard.start();
 }
 
-extern "C" JNIEXPORT void JNICALL
-Java_org_peercast_core_PeerCastService_nativeQuit(JNIEnv *env, jobject jthis) {
+static void nativeQuit(JNIEnv *env, jobject jthis) {
+    COUNT_JNI_CALL("nativeQuit");
+    //終了処理の経過をログに出す
+    const auto started = chrono::steady_clock::now();
+    auto elapsed = [&started]() {
+        return (long) chrono::duration_cast<chrono::milliseconds>(
+                chrono::steady_clock::now() - started).count();
+    };
+
+    //Binderスレッドなどで実行中のものを待ち、以降は受け付けない
+    runningGuard.quit();
+    LOGI("nativeQuit: in-flight calls finished +%ldms", elapsed());
 
     if (peercastInst != nullptr) {
         peercastInst->saveSettings();
+        LOGI("nativeQuit: saveSettings() +%ldms", elapsed());
         peercastInst->quit();
-        LOGD("peercastInst->quit() OK.");
-        for (int i = 0; getRemainingAttachedThreads() > 0 && i < 3000; i++) {
-            //sleepしているスレッドがあれば待つ
-            ::usleep(1000);
+        LOGI("nativeQuit: quit() +%ldms", elapsed());
+        //ChNotifyスレッドも数に含まれる
+        static_cast<AndroidPeercastApp *>(peercastApp)->stopChannelNotifyQueue();
+
+        //sleepしているスレッドがあれば待つ
+        if (waitForAttachedThreads(QUIT_TIMEOUT_MS)) {
+            LOGI("nativeQuit: all threads exited +%ldms", elapsed());
+        } else {
+            LOGW("nativeQuit: %d threads still alive +%ldms: %s",
+                 getRemainingAttachedThreads(), elapsed(),
+                 getAttachedThreadNames().c_str());
         }
     }
 
@@ -233,12 +460,13 @@ Java_org_peercast_core_PeerCastService_nativeQuit(JNIEnv *env, jobject jthis) {
     peercastInst = nullptr;
     delete peercastApp;
     peercastApp = nullptr;
+    LOGI("nativeQuit: done +%ldms", elapsed());
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_PeerCastService_nativeSetPort(JNIEnv *env, jobject thiz, jint port) {
-    if (servMgr && peercastInst && servMgr->serverHost.port != port) {
+static void nativeSetPort(JNIEnv *env, jobject thiz, jint port) {
+    COUNT_JNI_CALL("nativeSetPort");
+    ScopedRunning running;
+    if (running && servMgr && peercastInst && servMgr->serverHost.port != port) {
         if (port >= 1025 && port <= 65532) {
             LOGI("Port's changing: %d -> %d", servMgr->serverHost.port, port);
             servMgr->serverHost.port = (u_short) port;
@@ -252,20 +480,22 @@ Java_org_peercast_core_PeerCastService_nativeSetPort(JNIEnv *env, jobject thiz,
     }
 }
 
-extern "C"
-JNIEXPORT jint JNICALL
-Java_org_peercast_core_PeerCastService_nativeGetPort(JNIEnv *env, jobject thiz) {
-    return servMgr ? servMgr->serverHost.port : 0;
+static jint nativeGetPort(JNIEnv *env, jobject thiz) {
+    COUNT_JNI_CALL("nativeGetPort");
+    ScopedRunning running;
+    return running && servMgr ? servMgr->serverHost.port : 0;
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_org_peercast_core_PeerCastService_nativeClearCache(JNIEnv *env, jobject thiz, jint cmd) {
+static void nativeClearCache(JNIEnv *env, jobject thiz, jint cmd) {
+    COUNT_JNI_CALL("nativeClearCache");
 #define CLEAR_HOST_CACHE    1
 #define CLEAR_HIT_LISTS_CACHE   2
 #define CLEAR_CHANNELS_CACHE    4
 
     LOGI("nativeClearCache: cmd=%d", cmd);
+    ScopedRunning running;
+    if (!running)
+        return;
 
     if (servMgr && cmd & CLEAR_HOST_CACHE)
         servMgr->clearHostCache(ServHost::T_SERVENT);
@@ -275,13 +505,119 @@ Java_org_peercast_core_PeerCastService_nativeClearCache(JNIEnv *env, jobject thi
         chanMgr->closeIdles();
 }
 
-extern "C" JNIEXPORT void JNICALL Java_org_peercast_core_PeerCastService_nativeClassInit(
-        JNIEnv *env, jclass jclz) {
+static jboolean nativeBumpChannel(JNIEnv *env, jobject thiz, jstring chId) {
+    COUNT_JNI_CALL("nativeBumpChannel");
+    ScopedRunning running;
+    if (!running || !chanMgr)
+        return JNI_FALSE;
+
+    GnuID id(ScopedUtfChars(env, chId).c_str());
+    auto ch = chanMgr->findChannelByID(id);
+    if (!ch) {
+        LOGW("nativeBumpChannel: channel not found: %s", id.str().c_str());
+        return JNI_FALSE;
+    }
+    ch->bump = true;
+    return JNI_TRUE;
+}
+
+static jboolean nativeStopChannel(JNIEnv *env, jobject thiz, jstring chId) {
+    COUNT_JNI_CALL("nativeStopChannel");
+    ScopedRunning running;
+    if (!running || !chanMgr)
+        return JNI_FALSE;
+
+    GnuID id(ScopedUtfChars(env, chId).c_str());
+    auto ch = chanMgr->findChannelByID(id);
+    if (!ch) {
+        LOGW("nativeStopChannel: channel not found: %s", id.str().c_str());
+        return JNI_FALSE;
+    }
+    ch->thread.shutdown();
+    return JNI_TRUE;
+}
+
+static jbyteArray nativeCallRpc(JNIEnv *env, jobject thiz, jstring request) {
+    COUNT_JNI_CALL("nativeCallRpc");
+    ScopedRunning running;
+    if (!running || !servMgr || !peercastInst)
+        return nullptr;
+
+    JrpcApi api;
+    const string res = api.call(ScopedUtfChars(env, request).c_str());
+
+    jbyteArray jRes = env->NewByteArray(res.size());
+    if (jRes != nullptr)
+        env->SetByteArrayRegion(jRes, 0, res.size(), reinterpret_cast<const jbyte *>(res.data()));
+    return jRes;
+}
+
+static void nativeOnNetworkChanged(JNIEnv *env, jobject thiz) {
+    COUNT_JNI_CALL("nativeOnNetworkChanged");
+    ScopedRunning running;
+    if (!running || !servMgr || !chanMgr || !peercastInst)
+        return;
+    //トラッカーは新しいアドレスを知らないので、すぐに知らせ直す
+    LOGI("Network changed: broadcast tracker update");
+    chanMgr->broadcastTrackerUpdate(servMgr->sessionID, true);
+}
+
+static jstring nativeGetJniStats(JNIEnv *env, jobject thiz) {
+    COUNT_JNI_CALL("nativeGetJniStats");
+    return env->NewStringUTF(JniCallCounter::dumpAll().c_str());
+}
+
+static jlong nativeGetDroppedLogCount(JNIEnv *env, jobject thiz) {
+    COUNT_JNI_CALL("nativeGetDroppedLogCount");
+    if (!peercastApp)
+        return 0;
+    return (jlong) static_cast<AndroidPeercastApp *>(peercastApp)->getDroppedLogCount();
+}
+
+static void nativeSetThreadPriorities(JNIEnv *env, jobject thiz, jstring rules) {
+    COUNT_JNI_CALL("nativeSetThreadPriorities");
+    threadPriorityPolicy.setRules(env, ScopedUtfChars(env, rules).c_str());
+}
+
+static jstring nativeGetThreadPriorities(JNIEnv *env, jobject thiz) {
+    COUNT_JNI_CALL("nativeGetThreadPriorities");
+    return env->NewStringUTF(threadPriorityPolicy.dump().c_str());
+}
+
+static void nativeClassInit(JNIEnv *env, jclass jclz) {
+    COUNT_JNI_CALL("nativeClassInit");
     classCache.init(env, jclz);
 }
 
+static const JNINativeMethod gMethods[] = {
+        {"nativeStart",                 "(Ljava/lang/String;I)V", (void *) nativeStart},
+        {"nativeQuit",                  "()V",                    (void *) nativeQuit},
+        {"nativeSetPort",               "(I)V",                   (void *) nativeSetPort},
+        {"nativeGetPort",               "()I",                    (void *) nativeGetPort},
+        {"nativeClearCache",            "(I)V",                   (void *) nativeClearCache},
+        {"nativeBumpChannel",           "(Ljava/lang/String;)Z",  (void *) nativeBumpChannel},
+        {"nativeStopChannel",           "(Ljava/lang/String;)Z",  (void *) nativeStopChannel},
+        {"nativeCallRpc",               "(Ljava/lang/String;)[B", (void *) nativeCallRpc},
+        {"nativeOnNetworkChanged",      "()V",                    (void *) nativeOnNetworkChanged},
+        {"nativeGetJniStats",           "()Ljava/lang/String;",   (void *) nativeGetJniStats},
+        {"nativeGetDroppedLogCount",    "()J",                    (void *) nativeGetDroppedLogCount},
+        {"nativeSetThreadPriorities",   "(Ljava/lang/String;)V",  (void *) nativeSetThreadPriorities},
+        {"nativeGetThreadPriorities",   "()Ljava/lang/String;",   (void *) nativeGetThreadPriorities},
+        {"nativeClassInit",             "()V",                    (void *) nativeClassInit},
+};
+
 extern "C" JNIEXPORT jint JNICALL
 JNI_OnLoad(JavaVM *vm, void *reserved) {
-    return initJniHelper(vm) == JNI_OK ? JNI_VERSION_1_6 : -1;
+    if (initJniHelper(vm) != JNI_OK)
+        return -1;
+
+    //名前による検索をせず、ここで登録する
+    JNIEnv *env = ::getJniEnv();
+    ScopedLocalRef<jclass> clz(env, env->FindClass("org/peercast/core/PeerCastService"));
+    if (clz == nullptr ||
+        env->RegisterNatives(clz.get(), gMethods, sizeof(gMethods) / sizeof(gMethods[0])) != JNI_OK) {
+        LOGE("RegisterNatives failed.");
+        return -1;
+    }
+    return JNI_VERSION_1_6;
 }
-
@@ -0,0 +1,111 @@
+// ------------------------------------------------
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// ------------------------------------------------
+
+#include "ThreadPriority.h"
+
+#include <cerrno>
+#include <cstdlib>
+#include <cstring>
+#include <strings.h>
+#include <sys/resource.h>
+#include <unistd.h>
+
+#include "JniHelper.h"
+#include "nativehelper/scoped_local_ref.h"
+
+#define TAG "PeCaThPrio"
+
+using namespace std;
+
+ThreadPriorityPolicy threadPriorityPolicy;
+
+void ThreadPriorityPolicy::setRules(JNIEnv *env, const string &rules) {
+    vector<Rule> v;
+    size_t pos = 0;
+    while (pos <= rules.size()) {
+        size_t end = rules.find(';', pos);
+        if (end == string::npos)
+            end = rules.size();
+        const string item = rules.substr(pos, end - pos);
+        pos = end + 1;
+
+        const size_t eq = item.find('=');
+        if (eq == string::npos || eq == 0)
+            continue;
+        char *e;
+        const long priority = ::strtol(item.c_str() + eq + 1, &e, 10);
+        if (*e != '\0' || priority < -20 || priority > 19) {
+            LOGW("invalid rule: `%s`", item.c_str());
+            continue;
+        }
+        v.push_back({item.substr(0, eq), (int) priority});
+    }
+
+    lock_guard<mutex> lock(_mutex);
+    _rules = std::move(v);
+    if (_clzProcess == nullptr) {
+        ScopedLocalRef<jclass> clz(env, env->FindClass("android/os/Process"));
+        _clzProcess = (jclass) env->NewGlobalRef(CHECK_NOT_NULL(clz.get()));
+        _setThreadPriority = CHECK_NOT_NULL(
+                env->GetStaticMethodID(_clzProcess, "setThreadPriority", "(I)V"));
+    }
+}
+
+void ThreadPriorityPolicy::apply(const char *threadName) {
+    if (threadName == nullptr)
+        return;
+
+    int priority;
+    {
+        lock_guard<mutex> lock(_mutex);
+        if (_clzProcess == nullptr)
+            return;
+        auto it = _rules.begin();
+        for (; it != _rules.end(); ++it) {
+            if (::strncasecmp(threadName, it->prefix.c_str(), it->prefix.size()) == 0)
+                break;
+        }
+        if (it == _rules.end())
+            return;
+        priority = it->priority;
+    }
+
+    //nice値だけでなく、Androidのスケジューリングのグループも合わせて変える
+    JNIEnv *env = ::getJniEnv();
+    env->CallStaticVoidMethod(_clzProcess, _setThreadPriority, (jint) priority);
+    if (env->ExceptionCheck()) {
+        //IllegalArgumentException, SecurityException
+        env->ExceptionClear();
+        ++_failed;
+        LOGW("setThreadPriority failed: `%s` priority=%d", threadName, priority);
+    } else {
+        ++_applied;
+        LOGV("`%s` tid=%d priority=%d", threadName, gettid(), priority);
+    }
+}
+
+string ThreadPriorityPolicy::dump() {
+    string s = "rules:";
+    {
+        lock_guard<mutex> lock(_mutex);
+        for (auto &r: _rules)
+            s += strprintf(" %s=%d", r.prefix.c_str(), r.priority);
+    }
+    s += strprintf("\napplied: %u, failed: %u\n", _applied.load(), _failed.load());
+
+    for (auto &t: getAttachedThreads()) {
+        errno = 0;
+        const int nice = ::getpriority(PRIO_PROCESS, t.first);
+        s += strprintf("  %s(tid=%d): ", t.second.empty() ? "?" : t.second.c_str(), t.first);
+        s += errno == 0 ? strprintf("nice=%d\n", nice) : string("exited\n");
+    }
+    return s;
+}
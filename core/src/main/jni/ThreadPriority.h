@@ -0,0 +1,53 @@
+// ------------------------------------------------
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// ------------------------------------------------
+
+#pragma once
+
+#include <jni.h>
+#include <atomic>
+#include <mutex>
+#include <string>
+#include <vector>
+
+/**
+ * スレッド名(setThreadNameに渡される名前)の前方一致で、スレッドの優先度を決める。
+ *  ex: "SERVENT=-8;CHANNEL=-8;YP=10" (値はandroid.os.ProcessのTHREAD_PRIORITY_*)
+ *  - 大文字小文字は区別しない。最初に一致した規則を使う。
+ *  - 一致しなければ変更しない。
+ *  - 規則を変えても、すでに名前の付いたスレッドには適用しない。
+ *  - Process.setThreadPriority()で設定する。(BACKGROUNDならcgroupなども移る)
+ * */
+class ThreadPriorityPolicy {
+public:
+    /**書式が正しくない項目は無視する。JVMのスレッドから呼ぶ。*/
+    void setRules(JNIEnv *env, const std::string &rules);
+
+    /**呼び出したスレッドに適用する。JVMにアタッチ済みであること。*/
+    void apply(const char *threadName);
+
+    /**規則と、関連付けられているスレッドの現在のnice値。(dumpsys用)*/
+    std::string dump();
+
+private:
+    struct Rule {
+        std::string prefix;
+        int priority; //THREAD_PRIORITY_*
+    };
+
+    std::mutex _mutex;
+    std::vector<Rule> _rules;
+    jclass _clzProcess = nullptr; //GlobalRef
+    jmethodID _setThreadPriority = nullptr;
+    std::atomic<unsigned int> _applied{0};
+    std::atomic<unsigned int> _failed{0};
+};
+
+extern ThreadPriorityPolicy threadPriorityPolicy;
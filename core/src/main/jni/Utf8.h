@@ -0,0 +1,113 @@
+// ------------------------------------------------
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// ------------------------------------------------
+
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+
+/**
+ * newJStringで使うUTF-8の判定と変換。JNIに依存しない。(ホストでのベンチマーク用)
+ * */
+namespace utf8 {
+
+    enum Kind {
+        ASCII,
+        //U+FFFFまで。Modified UTF-8と同じバイト列になる (NULは含まれない)
+        BMP,
+        //4バイトの文字を含む
+        SUPPLEMENTARY,
+        INVALID,
+    };
+
+    inline Kind classify(const char *str, size_t len) noexcept {
+        auto s = reinterpret_cast<const uint8_t *>(str);
+        Kind kind = ASCII;
+        size_t i = 0;
+        while (i < len) {
+            //ASCIIが続く間は8バイトずつ
+            if (i + 8 <= len) {
+                uint64_t w;
+                ::memcpy(&w, s + i, 8);
+                if ((w & 0x8080808080808080ULL) == 0) {
+                    i += 8;
+                    continue;
+                }
+            }
+            const uint8_t c = s[i];
+            if (c < 0x80) {
+                i++;
+                continue;
+            }
+            if (c >= 0xC2 && c <= 0xDF) {
+                if (i + 1 >= len || (s[i + 1] & 0xC0) != 0x80)
+                    return INVALID;
+                i += 2;
+                if (kind == ASCII)
+                    kind = BMP;
+            } else if (c >= 0xE0 && c <= 0xEF) {
+                if (i + 2 >= len || (s[i + 1] & 0xC0) != 0x80 || (s[i + 2] & 0xC0) != 0x80)
+                    return INVALID;
+                //冗長な表現とサロゲート
+                if ((c == 0xE0 && s[i + 1] < 0xA0) || (c == 0xED && s[i + 1] >= 0xA0))
+                    return INVALID;
+                i += 3;
+                if (kind == ASCII)
+                    kind = BMP;
+            } else if (c >= 0xF0 && c <= 0xF4) {
+                if (i + 3 >= len || (s[i + 1] & 0xC0) != 0x80 ||
+                    (s[i + 2] & 0xC0) != 0x80 || (s[i + 3] & 0xC0) != 0x80)
+                    return INVALID;
+                //冗長な表現とU+10FFFFを超えるもの
+                if ((c == 0xF0 && s[i + 1] < 0x90) || (c == 0xF4 && s[i + 1] >= 0x90))
+                    return INVALID;
+                i += 4;
+                kind = SUPPLEMENTARY;
+            } else {
+                return INVALID;
+            }
+        }
+        return kind;
+    }
+
+    /**
+     * 有効なUTF-8(classifyがINVALIDでないもの)をUTF-16に変換する。
+     * outにはlen個分の領域が必要。
+     * @return outに書いた数
+     * */
+    inline size_t toUtf16(const char *str, size_t len, char16_t *out) noexcept {
+        auto s = reinterpret_cast<const uint8_t *>(str);
+        size_t n = 0;
+        size_t i = 0;
+        while (i < len) {
+            const uint8_t c = s[i];
+            if (c < 0x80) {
+                out[n++] = c;
+                i++;
+            } else if (c < 0xE0) {
+                out[n++] = char16_t(((c & 0x1F) << 6) | (s[i + 1] & 0x3F));
+                i += 2;
+            } else if (c < 0xF0) {
+                out[n++] = char16_t(((c & 0x0F) << 12) | ((s[i + 1] & 0x3F) << 6) |
+                                    (s[i + 2] & 0x3F));
+                i += 3;
+            } else {
+                const uint32_t cp = ((c & 0x07) << 18) | ((s[i + 1] & 0x3F) << 12) |
+                                    ((s[i + 2] & 0x3F) << 6) | (s[i + 3] & 0x3F);
+                out[n++] = char16_t(0xD800 + ((cp - 0x10000) >> 10));
+                out[n++] = char16_t(0xDC00 + ((cp - 0x10000) & 0x3FF));
+                i += 4;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,90 @@
+// ------------------------------------------------
+// newJStringの経路ごとの、ネイティブ側のコストを比べるホスト用ベンチマーク。
+// JVMなしで動かすため、JNIのアロケーションはmallocとUTF-16への変換で置き換えている。
+// JNIの呼び出し自体のコスト(遷移、NewObjectのメソッド呼び出し、文字コード名の検索)は
+// 含まれないので、呼び出し回数と合わせて見る。
+//
+//  旧: strlen -> byte[]へコピー(NewByteArray+SetByteArrayRegion)
+//      -> String(byte[], "utf8")でデコード                        : 2回のアロケーション
+//  新: classify -> NewStringUTF (ASCII/BMP) または NewString (4バイト文字)
+//                                                                 : 1回のアロケーション
+//
+// $ c++ -O2 -std=c++17 -I.. newjstring_bench.cpp -o /tmp/bench && /tmp/bench
+// ------------------------------------------------
+
+#include "Utf8.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <memory>
+#include <string>
+#include <vector>
+
+using namespace std;
+
+//最適化で消されないように
+static volatile size_t sink;
+
+//旧: byte[]にコピーし、Java側でUTF-16にデコードする
+static void legacyPath(const char *s) {
+    const size_t len = ::strlen(s);
+    unique_ptr<char[]> bytes(new char[len]);
+    ::memcpy(bytes.get(), s, len);
+    unique_ptr<char16_t[]> chars(new char16_t[len]);
+    sink = utf8::toUtf16(bytes.get(), len, chars.get());
+}
+
+//新: 判定してから1回だけ変換する
+static void fastPath(const char *s) {
+    const size_t len = ::strlen(s);
+    switch (utf8::classify(s, len)) {
+        case utf8::INVALID:
+            legacyPath(s);
+            return;
+        default:
+            unique_ptr<char16_t[]> chars(new char16_t[len]);
+            sink = utf8::toUtf16(s, len, chars.get());
+    }
+}
+
+static string channelInfoJson(const string &name, const string &comment) {
+    return R"({"name":")" + name + R"(","url":"http://example.com/bbs/","genre":")" + name +
+           R"(","desc":")" + comment + R"(","comment":")" + comment +
+           R"(","bitrate":1000,"contentType":"FLV","mimeType":"video/x-flv"})";
+}
+
+template<class F>
+static double measure(F f, const string &s, int n) {
+    const auto start = chrono::steady_clock::now();
+    for (int i = 0; i < n; i++)
+        f(s.c_str());
+    const auto t = chrono::steady_clock::now() - start;
+    return chrono::duration<double, nano>(t).count() / n;
+}
+
+int main() {
+    const vector<pair<const char *, string>> payloads = {
+            {"ascii",  channelInfoJson("Channel", "Playing games")},
+            {"ja",     channelInfoJson("チャンネル", "ゲームをしています")},
+            {"emoji",  channelInfoJson("チャンネル\xF0\x9F\x8E\xAE", "ゲーム\xF0\x9F\x98\x80")},
+            {"chanId", "0123456789ABCDEF0123456789ABCDEF"},
+    };
+    const int n = 1000000;
+
+    //NewByteArray, NewStringUTF(encoding), SetByteArrayRegion, NewObject, DeleteLocalRef x2
+    //  -> NewStringUTF または NewString
+    printf("JNI calls: legacy=6, fast=1\n");
+    printf("%-8s %6s %12s %12s\n", "payload", "bytes", "legacy(ns)", "fast(ns)");
+    for (auto &p: payloads) {
+        //ウォームアップ
+        measure(legacyPath, p.second, n / 10);
+        measure(fastPath, p.second, n / 10);
+
+        printf("%-8s %6zu %12.1f %12.1f\n", p.first, p.second.size(),
+               measure(legacyPath, p.second, n),
+               measure(fastPath, p.second, n));
+    }
+    return 0;
+}
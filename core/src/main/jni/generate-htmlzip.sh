@@ -23,7 +23,8 @@ echo -n $revision_new > "$revision_txt"
 [ -f "$asset_zip" ] && rm "$asset_zip"
 
 RUBYOPT='--disable-gems' ./generate-html
-zip -J $asset_zip -r html/
+# 無圧縮(-0)にしておくと、WebViewがAPKから直接読める (AssetZip)
+zip -0 -J $asset_zip -r html/
 
-zip -J $asset_zip -r assets/
+zip -0 -J $asset_zip -r assets/
 
@@ -0,0 +1,120 @@
+package org.peercast.core.upnp
+
+import java.io.Closeable
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.SocketException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.concurrent.thread
+
+/**
+ * テスト用に、ループバックでPCP/NAT-PMPに答えるゲートウェイ。
+ *
+ * @param pcp falseならNAT-PMPのみ (PCPの要求にはUNSUPP_VERSIONを返す)
+ */
+internal class FakeNatPmpGateway(private val pcp: Boolean = true) : Closeable {
+    private val socket = DatagramSocket(0, InetAddress.getLoopbackAddress())
+    val address: InetAddress get() = socket.localAddress
+    val port: Int get() = socket.localPort
+
+    /**最初のn個の要求に答えない*/
+    @Volatile
+    var dropFirst = 0
+
+    /**0以外なら、このresult codeを返す*/
+    @Volatile
+    var resultCode = 0
+
+    /**internal port -> (external port, lifetime)*/
+    val mappings = ConcurrentHashMap<Int, Pair<Int, Int>>()
+
+    @Volatile
+    var received = 0
+        private set
+
+    private val thread = thread(name = "FakeNatPmpGateway") {
+        val buf = ByteArray(1100)
+        while (true) {
+            val p = DatagramPacket(buf, buf.size)
+            try {
+                socket.receive(p)
+            } catch (e: SocketException) {
+                break
+            }
+            if (received++ < dropFirst)
+                continue
+            val req = ByteBuffer.wrap(p.data.copyOf(p.length))
+            val res = when (req[0].toInt()) {
+                2 -> if (pcp) handlePcp(req) else unsupportedVersion(req)
+                0 -> handleNatPmp(req)
+                else -> null
+            } ?: continue
+            socket.send(DatagramPacket(res, res.size, p.socketAddress))
+        }
+    }
+
+    private fun unsupportedVersion(req: ByteBuffer): ByteArray {
+        return ByteBuffer.allocate(8)
+            .put(0).put((0x80 or req[1].toInt()).toByte())
+            .putShort(1).putInt(EPOCH)
+            .array()
+    }
+
+    private fun handlePcp(req: ByteBuffer): ByteArray {
+        val lifetime = req.getInt(4)
+        val internalPort = req.getShort(40).toInt() and 0xffff
+        val ext = mapOrUnmap(internalPort, req.getShort(42).toInt() and 0xffff, lifetime)
+        val res = ByteBuffer.allocate(60)
+            .put(2).put((0x80 or 1).toByte()).put(0).put(resultCode.toByte())
+            .putInt(lifetime).putInt(EPOCH).put(ByteArray(12))
+        //nonce, protocol, reserved, internal port
+        res.put(req.array(), 24, 18)
+        res.putShort(ext.toShort())
+            .put(ByteArray(10)).put(0xff.toByte()).put(0xff.toByte())
+            .put(EXTERNAL_ADDRESS.address)
+        return res.array()
+    }
+
+    private fun handleNatPmp(req: ByteBuffer): ByteArray? {
+        return when (req[1].toInt()) {
+            0 -> ByteBuffer.allocate(12)
+                .put(0).put(0x80.toByte()).putShort(resultCode.toShort()).putInt(EPOCH)
+                .put(EXTERNAL_ADDRESS.address)
+                .array()
+            2 -> {
+                val internalPort = req.getShort(4).toInt() and 0xffff
+                val lifetime = req.getInt(8)
+                val ext = mapOrUnmap(internalPort, req.getShort(6).toInt() and 0xffff, lifetime)
+                ByteBuffer.allocate(16)
+                    .put(0).put((0x80 or 2).toByte()).putShort(resultCode.toShort()).putInt(EPOCH)
+                    .putShort(internalPort.toShort()).putShort(ext.toShort()).putInt(lifetime)
+                    .array()
+            }
+            else -> null
+        }
+    }
+
+    private fun mapOrUnmap(internalPort: Int, suggested: Int, lifetime: Int): Int {
+        if (resultCode != 0)
+            return 0
+        if (lifetime == 0) {
+            mappings.remove(internalPort)
+            return 0
+        }
+        val ext = if (suggested != 0) suggested else internalPort
+        mappings[internalPort] = ext to lifetime
+        return ext
+    }
+
+    override fun close() {
+        socket.close()
+        thread.join()
+    }
+
+    companion object {
+        private const val EPOCH = 1234
+        val EXTERNAL_ADDRESS: InetAddress = InetAddress.getByName("203.0.113.1")
+    }
+}
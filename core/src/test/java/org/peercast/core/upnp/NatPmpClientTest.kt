@@ -0,0 +1,107 @@
+package org.peercast.core.upnp
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.net.SocketTimeoutException
+
+class NatPmpClientTest {
+    private val gateways = ArrayList<FakeNatPmpGateway>()
+
+    private fun newGateway(pcp: Boolean = true) = FakeNatPmpGateway(pcp).also { gateways += it }
+
+    private fun newClient(g: FakeNatPmpGateway) =
+        NatPmpClient(g.address, g.port, maxTries = 3, initialTimeout = 100)
+
+    @After
+    fun tearDown() {
+        gateways.forEach { it.close() }
+    }
+
+    @Test
+    fun mapWithPcp() {
+        val g = newGateway()
+        val c = newClient(g)
+        val m = c.map(7144, 7144, 3600)
+
+        assertEquals(NatPmpClient.VERSION_PCP, c.version)
+        assertEquals(7144, m.externalPort)
+        assertEquals(3600, m.lifetime)
+        assertEquals(FakeNatPmpGateway.EXTERNAL_ADDRESS, m.externalAddress)
+        assertEquals(7144 to 3600, g.mappings[7144])
+
+        c.unmap(7144)
+        assertTrue(g.mappings.isEmpty())
+    }
+
+    @Test
+    fun fallbackToNatPmp() {
+        val g = newGateway(pcp = false)
+        val c = newClient(g)
+        val m = c.map(7144, 7144, 3600)
+
+        assertEquals(NatPmpClient.VERSION_NAT_PMP, c.version)
+        assertEquals(7144, m.externalPort)
+        assertEquals(FakeNatPmpGateway.EXTERNAL_ADDRESS, c.externalAddress())
+
+        //2回目からはPCPを送らない
+        val n = g.received
+        c.map(7144, 7144, 3600)
+        assertEquals(n + 1, g.received)
+    }
+
+    @Test
+    fun retransmit() {
+        val g = newGateway()
+        g.dropFirst = 2
+        val m = newClient(g).map(7144, 7144, 3600)
+        assertEquals(7144, m.externalPort)
+        assertEquals(3, g.received)
+    }
+
+    @Test
+    fun timeout() {
+        val g = newGateway()
+        g.dropFirst = Int.MAX_VALUE
+        try {
+            newClient(g).map(7144, 7144, 3600)
+            fail()
+        } catch (e: SocketTimeoutException) {
+        }
+        assertEquals(3, g.received)
+    }
+
+    @Test
+    fun resultCode() {
+        val g = newGateway()
+        g.resultCode = 2 //NOT_AUTHORIZED
+        try {
+            newClient(g).map(7144, 7144, 3600)
+            fail()
+        } catch (e: NatPmpClient.ResultCodeException) {
+            assertEquals(NatPmpClient.VERSION_PCP, e.version)
+            assertEquals(2, e.resultCode)
+        }
+    }
+
+    /**同じポートを何度開け直しても、ゲートウェイの1件を更新するだけ。再送もしない*/
+    @Test
+    fun repeatedMapping() {
+        for (pcp in listOf(true, false)) {
+            val g = newGateway(pcp)
+            val c = newClient(g)
+            c.map(7144, 7144, 3600)
+
+            val n = g.received
+            repeat(100) {
+                val m = c.map(7144, 7144, 3600)
+                assertEquals(7144, m.externalPort)
+                assertEquals(3600, m.lifetime)
+            }
+            assertEquals(n + 100, g.received)
+            assertEquals(mapOf(7144 to (7144 to 3600)), g.mappings.toMap())
+        }
+    }
+}
@@ -6,14 +6,31 @@ import android.content.pm.PackageManager.NameNotFoundException
 import android.os.*
 import android.util.Log
 import android.widget.Toast
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
 import org.peercast.core.INotificationCallback
 import org.peercast.core.IPeerCastService
+import org.peercast.core.lib.internal.BaseJsonRpcConnection
 import org.peercast.core.lib.internal.NotificationUtils
+import org.peercast.core.lib.internal.NotifyEvent
 import org.peercast.core.lib.internal.ServiceIntents
+import org.peercast.core.lib.notify.NotifyChannelEvent
 import org.peercast.core.lib.notify.NotifyChannelType
 import org.peercast.core.lib.notify.NotifyMessageType
 import org.peercast.core.lib.rpc.ChannelInfo
+import org.peercast.core.lib.rpc.ChannelStatus
+import org.peercast.core.lib.rpc.io.BinderJsonRpcConnection
+import org.peercast.core.lib.rpc.io.JsonRpcConnection
 import java.util.*
 
 /**
@@ -25,6 +42,7 @@ import java.util.*
  */
 class PeerCastController private constructor(private val c: Context) {
     private var service: IPeerCastService? = null
+    private var apiVersion = 0
     var eventListener: EventListener? = null
         set(value) {
             field = value
@@ -41,10 +59,16 @@ class PeerCastController private constructor(private val c: Context) {
             if (binder.interfaceDescriptor == "org.peercast.core.IPeerCastService") {
                 IPeerCastService.Stub.asInterface(binder)?.also { s ->
                     service = s
+                    //旧バージョンのサービスでは0または例外
+                    apiVersion = kotlin.runCatching { s.apiVersion }.getOrDefault(0)
                     kotlin.runCatching {
-                        s.registerNotificationCallback(notificationCallback)
+                        if (apiVersion >= 5)
+                            s.registerNotificationCallback5(notificationCallback)
+                        else
+                            s.registerNotificationCallback(notificationCallback)
                     }.onFailure { Log.w(TAG, it) }
                     eventListener?.onConnectService(this@PeerCastController)
+                    watchReady()
                 }
             } else {
                 Toast.makeText(c, "Please update PeerCast app.", Toast.LENGTH_LONG).show()
@@ -59,21 +83,80 @@ class PeerCastController private constructor(private val c: Context) {
             }.onFailure { Log.w(TAG, it) }
 
             service = null
+            apiVersion = 0
+            _readyState.value = false
             eventListener?.onDisconnectService()
         }
     }
 
+    private val _readyState = MutableStateFlow(false)
+
+    /**
+     * サービスのPeerCastがRPCを受け付けられる状態ならtrue。
+     * 接続直後はまだ起動中の場合があるので、最初のRPCはtrueになってから行う。
+     * */
+    val readyState: StateFlow<Boolean> = _readyState
+
+    private fun watchReady() {
+        //v5のサービスからは、起動が終わるとonNotifyBatchでKIND_READYが届く
+        if (apiVersion < 5) {
+            //旧バージョンのサービスは、bindされた時点で起動済み
+            _readyState.value = true
+        }
+    }
+
+    private val _channelNotifications = MutableSharedFlow<NotifyChannelEvent>(
+        extraBufferCapacity = 64
+    )
+
+    /**チャンネルの開始などの通知。[EventListener.onNotifyChannel]と同じもの。*/
+    val channelNotifications: SharedFlow<NotifyChannelEvent> = _channelNotifications
+
     private val notificationCallback = object : INotificationCallback.Stub() {
         val handler = Handler(Looper.getMainLooper())
         override fun onNotifyChannel(notifyType: Int, chId: String, jsonChannelInfo: String) {
             handler.post {
-                eventListener?.onNotifyChannel(
-                    NotifyChannelType.values()[notifyType],
-                    chId, NotificationUtils.jsonToChannelInfo(jsonChannelInfo) ?: return@post
+                fireNotifyChannel(
+                    notifyType, chId,
+                    NotificationUtils.jsonToChannelInfo(jsonChannelInfo) ?: return@post
                 )
             }
         }
 
+        override fun onNotifyChannel5(notifyType: Int, chId: String, channelInfo: ChannelInfo) {
+            handler.post {
+                fireNotifyChannel(notifyType, chId, channelInfo)
+            }
+        }
+
+        override fun onNotifyBatch(events: List<NotifyEvent>) {
+            handler.post {
+                events.forEach { e ->
+                    when (e.kind) {
+                        NotifyEvent.KIND_CHANNEL -> fireNotifyChannel(
+                            e.notifyType, e.channelId ?: return@forEach,
+                            e.channelInfo ?: return@forEach
+                        )
+
+                        NotifyEvent.KIND_MESSAGE -> eventListener?.onNotifyMessage(
+                            NotifyMessageType.from(e.notifyType), e.message ?: return@forEach
+                        )
+
+                        NotifyEvent.KIND_READY -> {
+                            if (isConnected)
+                                _readyState.value = true
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun fireNotifyChannel(notifyType: Int, chId: String, info: ChannelInfo) {
+            val type = NotifyChannelType.values()[notifyType]
+            _channelNotifications.tryEmit(NotifyChannelEvent(type, chId, info))
+            eventListener?.onNotifyChannel(type, chId, info)
+        }
+
         override fun onNotifyMessage(types: Int, message: String) {
             handler.post {
                 eventListener?.onNotifyMessage(
@@ -127,6 +210,68 @@ class PeerCastController private constructor(private val c: Context) {
             return "http://127.0.0.1:$port/api/1"
         }
 
+    /**
+     * Binder経由のRPC接続を返す。サービスが対応していなければHTTPで接続する。
+     * @throws IllegalStateException サービスにbindされていない
+     * @throws RemoteException 取得できないとき
+     * */
+    val rpcConnection: BaseJsonRpcConnection
+        get() {
+            val s = service ?: error("service not connected.")
+            val http = JsonRpcConnection(rpcEndPoint)
+            return when {
+                apiVersion >= 5 -> BinderJsonRpcConnection(s, http)
+                else -> http
+            }
+        }
+
+    /**
+     * チャンネルの状態の変化を流す。
+     *
+     * チャンネルの通知(push)を受けたときはすぐに、それ以外は
+     * [minIntervalMillis]から[maxIntervalMillis]まで、変化がなければ間隔を倍にしながら
+     * getChannelStatusで取得する。同じ値は流さない。チャンネルの停止通知で終了する。
+     * @param client nullなら、取得のたびに[rpcConnection]から作る。(サービスに再接続しても、新しい接続を使う)
+     * @throws IOException 取得に失敗したとき
+     * @throws IllegalStateException clientがnullで、取得するときにサービスにbindされていない
+     * @throws RemoteException clientがnullで、接続先を取得できないとき
+     * */
+    fun channelStatusFlow(
+        channelId: String,
+        client: PeerCastRpcClient? = null,
+        minIntervalMillis: Long = 1_000L,
+        maxIntervalMillis: Long = 16_000L,
+    ): Flow<ChannelStatus> = channelFlow {
+        //true: 停止通知
+        val wakeUp = Channel<Boolean>(Channel.CONFLATED)
+
+        val jNotify = launch {
+            channelNotifications.filter { it.channelId == channelId }.collect {
+                wakeUp.trySend(it.type == NotifyChannelType.Stop)
+            }
+        }
+
+        var interval = minIntervalMillis
+        var last: ChannelStatus? = null
+        while (true) {
+            val status = (client ?: PeerCastRpcClient(this@PeerCastController))
+                .getChannelStatus(channelId)
+            if (status != last) {
+                send(status)
+                last = status
+                interval = minIntervalMillis
+            } else {
+                interval = (interval * 2).coerceAtMost(maxIntervalMillis)
+            }
+            val isStopped = withTimeoutOrNull(interval) {
+                wakeUp.receive()
+            }
+            if (isStopped == true)
+                break
+        }
+        jNotify.cancel()
+    }.conflate()
+
     /**
      * [Context.bindService]を呼び、PeerCastのサービスを開始する。
      */
@@ -0,0 +1,105 @@
+package org.peercast.core.lib
+
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.serializer
+import org.peercast.core.lib.rpc.Channel
+import org.peercast.core.lib.rpc.ChannelConnection
+import org.peercast.core.lib.rpc.ChannelInfoResult
+import org.peercast.core.lib.rpc.ChannelRelayTree
+import org.peercast.core.lib.rpc.ChannelStatus
+import org.peercast.core.lib.rpc.LogSettings
+import org.peercast.core.lib.rpc.Settings
+import org.peercast.core.lib.rpc.Status
+import org.peercast.core.lib.rpc.VersionInfo
+import org.peercast.core.lib.rpc.YellowPage
+import org.peercast.core.lib.rpc.YpChannel
+import org.peercast.core.lib.rpc.io.buildRpcRequest
+
+/**
+ * 複数のRPCコマンドを1回のPOSTでまとめて実行する。(JSON-RPC 2.0 バッチ)
+ *
+ * 例:
+ * ```
+ * val results = client.batch {
+ *     val status = getStatus()
+ *     val channels = getChannels()
+ * }
+ * ```
+ * @see PeerCastRpcClient.batch
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+class PeerCastRpcBatch internal constructor() {
+
+    /**バッチ内の1つのリクエスト。[Results.get]で結果を取り出す。*/
+    class Entry<T> internal constructor(
+        val index: Int,
+        internal val request: JsonObject,
+        internal val serializer: KSerializer<T>,
+    )
+
+    internal val entries = ArrayList<Entry<*>>()
+
+    private inline fun <reified T> add(request: JsonObject): Entry<T> {
+        return Entry(entries.size, request, serializer<T>()).also {
+            entries.add(it)
+        }
+    }
+
+    /**@see PeerCastRpcClient.getStatus*/
+    fun getStatus(): Entry<Status> = add(buildRpcRequest("getStatus"))
+
+    /**@see PeerCastRpcClient.getChannelConnections*/
+    fun getChannelConnections(channelId: String): Entry<List<ChannelConnection>> =
+        add(buildRpcRequest("getChannelConnections", channelId))
+
+    /**@see PeerCastRpcClient.getChannelRelayTree*/
+    fun getChannelRelayTree(channelId: String): Entry<List<ChannelRelayTree>> =
+        add(buildRpcRequest("getChannelRelayTree", channelId))
+
+    /**@see PeerCastRpcClient.getChannelInfo*/
+    fun getChannelInfo(channelId: String): Entry<ChannelInfoResult> =
+        add(buildRpcRequest("getChannelInfo", channelId))
+
+    /**@see PeerCastRpcClient.getVersionInfo*/
+    fun getVersionInfo(): Entry<VersionInfo> = add(buildRpcRequest("getVersionInfo"))
+
+    /**@see PeerCastRpcClient.getChannelStatus*/
+    fun getChannelStatus(channelId: String): Entry<ChannelStatus> =
+        add(buildRpcRequest("getChannelStatus", channelId))
+
+    /**@see PeerCastRpcClient.getChannels*/
+    fun getChannels(): Entry<List<Channel>> = add(buildRpcRequest("getChannels"))
+
+    /**@see PeerCastRpcClient.getSettings*/
+    fun getSettings(): Entry<Settings> = add(buildRpcRequest("getSettings"))
+
+    /**@see PeerCastRpcClient.getLogSettings*/
+    fun getLogSettings(): Entry<LogSettings> = add(buildRpcRequest("getLogSettings"))
+
+    /**@see PeerCastRpcClient.getYPChannels*/
+    fun getYPChannels(): Entry<List<YpChannel>> = add(buildRpcRequest("getYPChannels"))
+
+    /**@see PeerCastRpcClient.getYellowPages*/
+    fun getYellowPages(): Entry<List<YellowPage>> = add(buildRpcRequest("getYellowPages"))
+
+    /**
+     * バッチの結果。リクエスト順に並ぶ。
+     * 個々のリクエストのエラーは [Result.failure] (JsonRpcException) になる。
+     * */
+    class Results internal constructor(
+        private val results: List<Result<Any?>>,
+    ) : List<Result<Any?>> by results {
+
+        /**@throws java.io.IOException そのリクエストが失敗していた場合*/
+        operator fun <T> get(entry: Entry<T>): T {
+            @Suppress("UNCHECKED_CAST")
+            return results[entry.index].getOrThrow() as T
+        }
+
+        fun <T> getOrNull(entry: Entry<T>): T? {
+            @Suppress("UNCHECKED_CAST")
+            return results[entry.index].getOrNull() as T?
+        }
+    }
+}
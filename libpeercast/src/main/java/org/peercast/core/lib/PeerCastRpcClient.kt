@@ -20,11 +20,15 @@ import org.peercast.core.lib.rpc.VersionInfo
 import org.peercast.core.lib.rpc.YellowPage
 import org.peercast.core.lib.rpc.YpChannel
 import org.peercast.core.lib.rpc.io.JsonRpcConnection
+import org.peercast.core.lib.rpc.io.JsonRpcException
+import org.peercast.core.lib.rpc.io.buildRpcBatchRequest
 import org.peercast.core.lib.rpc.io.buildRpcRequest
 import org.peercast.core.lib.rpc.io.buildRpcRequestArrayParams
 import org.peercast.core.lib.rpc.io.buildRpcRequestObjectParams
+import org.peercast.core.lib.rpc.io.decodeRpcBatchResponse
 import org.peercast.core.lib.rpc.io.decodeRpcResponse
 import org.peercast.core.lib.rpc.io.decodeRpcResponseOnlyErrorCheck
+import org.peercast.core.lib.rpc.io.rpcId
 import java.io.IOException
 
 /**
@@ -40,20 +44,27 @@ class PeerCastRpcClient(private val conn: BaseJsonRpcConnection) {
     /**@param endPoint RPC接続へのURL*/
     constructor(endPoint: String) : this(JsonRpcConnection(endPoint))
 
-    constructor(controller: PeerCastController) : this(controller.rpcEndPoint)
+    constructor(controller: PeerCastController) : this(controller.rpcConnection)
 
     /**RPC接続へのURL*/
     val rpcEndPoint: Uri get() = Uri.parse(conn.endPoint)
 
     private suspend inline fun <reified T> JsonObject.sendCommand(): T {
-        return conn.post(this.toString()) {
+        return conn.post(this) {
+            decodeRpcResponse(it)
+        }
+    }
+
+    //レスポンスが大きい場合
+    private suspend inline fun <reified T> JsonObject.sendStreamCommand(): T {
+        return conn.postForStream(this) {
             decodeRpcResponse(it)
         }
     }
 
     //result=nullしか帰ってこない場合
     private suspend fun JsonObject.sendVoidCommand() {
-        conn.post(this.toString()) {
+        conn.post(this) {
             decodeRpcResponseOnlyErrorCheck(it)
         }
     }
@@ -111,7 +122,7 @@ class PeerCastRpcClient(private val conn: BaseJsonRpcConnection) {
      * */
     suspend fun getChannelRelayTree(channelId: String): List<ChannelRelayTree> {
         return buildRpcRequest("getChannelRelayTree", channelId)
-            .sendCommand()
+            .sendStreamCommand()
     }
 
     suspend fun getChannelInfo(channelId: String): ChannelInfoResult {
@@ -177,7 +188,7 @@ class PeerCastRpcClient(private val conn: BaseJsonRpcConnection) {
         return buildRpcRequestObjectParams("getLog") {
             put("from", from)
             put("maxLines", maxLines)
-        }.sendCommand()
+        }.sendStreamCommand()
     }
 
     /**
@@ -206,7 +217,7 @@ class PeerCastRpcClient(private val conn: BaseJsonRpcConnection) {
      * @throws IOException
      * */
     suspend fun getYPChannels(): List<YpChannel> {
-        return buildRpcRequest("getYPChannels").sendCommand()
+        return buildRpcRequest("getYPChannels").sendStreamCommand()
     }
 
     /**
@@ -244,6 +255,31 @@ class PeerCastRpcClient(private val conn: BaseJsonRpcConnection) {
         throw NotImplementedError("Not implemented yet in jrpc.cpp")
     }
 
+    /**
+     * 複数のコマンドを1回のリクエストで実行する。(JSON-RPC 2.0 バッチ)
+     * バッチに対応していないサーバーの場合は、1つずつ実行する。
+     * @throws IOException 通信に失敗したとき
+     * @return リクエスト順の結果。個々のエラーは [Result.failure] になる。
+     * */
+    suspend fun batch(action: PeerCastRpcBatch.() -> Unit): PeerCastRpcBatch.Results {
+        val entries = PeerCastRpcBatch().apply(action).entries
+        if (entries.isEmpty())
+            return PeerCastRpcBatch.Results(emptyList())
+
+        val requests = entries.map { it.request }
+        val results = conn.post(buildRpcBatchRequest(requests)) { s ->
+            decodeRpcBatchResponse(s, entries.map { it.request.rpcId to it.serializer })
+        } ?: entries.map { e ->
+            //通常のコマンドと同じ型でデコードする。(キャッシュが他の呼び出し元と共有するため)
+            try {
+                Result.success(conn.post(e.request) { s -> decodeRpcResponse(s, e.serializer) })
+            } catch (ex: JsonRpcException) {
+                Result.failure(ex)
+            }
+        }
+        return PeerCastRpcBatch.Results(results)
+    }
+
     override fun hashCode(): Int {
         return javaClass.hashCode() * 31 + conn.hashCode()
     }
@@ -1,16 +1,20 @@
 package org.peercast.core.lib.app
 
 import android.app.Application
+import android.util.Log
 import androidx.annotation.CallSuper
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
 import org.peercast.core.lib.PeerCastController
 import org.peercast.core.lib.PeerCastRpcClient
 import org.peercast.core.lib.notify.NotifyMessageType
+import org.peercast.core.lib.rpc.io.CachingJsonRpcConnection
 import java.util.EnumSet
 
 abstract class BaseClientViewModel(
@@ -42,7 +46,29 @@ abstract class BaseClientViewModel(
 
     @CallSuper
     override fun onConnectService(controller: PeerCastController) {
-        _rpcClient.value = PeerCastRpcClient(controller)
+        //サービスのPeerCastが起動し終わってから
+        viewModelScope.launch {
+            val isReady = withTimeoutOrNull(READY_TIMEOUT) {
+                controller.readyState.first { it }
+            } ?: false
+            when {
+                !isReady -> onReadyTimeout()
+                controller.isConnected -> _rpcClient.value = createRpcClient()
+            }
+        }
+    }
+
+    /**
+     * サービスに接続したが、PeerCastの起動を待つ間にタイムアウトした。
+     * [rpcClient]はnullのまま。
+     * */
+    protected open fun onReadyTimeout() {
+        Log.e(TAG, "timeout: PeerCast is not ready.")
+    }
+
+    //同じViewModelを使う画面間で、読み出し系のRPCの結果を共有する
+    private fun createRpcClient(): PeerCastRpcClient {
+        return PeerCastRpcClient(CachingJsonRpcConnection(controller.rpcConnection))
     }
 
     @CallSuper
@@ -59,7 +85,7 @@ abstract class BaseClientViewModel(
             && NotifyMessageType.PeerCast in types
             && controller.isConnected
         ) {
-            _rpcClient.value = PeerCastRpcClient(controller)
+            _rpcClient.value = createRpcClient()
         }
     }
 
@@ -71,6 +97,9 @@ abstract class BaseClientViewModel(
 
     companion object {
         private const val TAG = "BasePeerCastViewModel"
+
+        //サービスのPeerCastの起動を待つ最大の時間
+        private const val READY_TIMEOUT = 30_000L
     }
 }
 
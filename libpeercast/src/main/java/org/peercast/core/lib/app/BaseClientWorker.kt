@@ -45,7 +45,10 @@ abstract class BaseClientWorker(
             }
 
             val client = withTimeoutOrNull(DEFAULT_SERVICE_TIMEOUT) {
-                rpcClient.first { it != null }
+                val c = rpcClient.first { it != null }
+                //サービスのPeerCastが起動し終わってから
+                controller.readyState.first { it }
+                c
             }
 
             if (client == null) {
@@ -1,5 +1,8 @@
 package org.peercast.core.lib.internal
 
+import kotlinx.serialization.json.JsonElement
+import java.io.InputStream
+
 /**
  * @author (c) 2019, T Yoshizawa
  * @licenses Dual licensed under the MIT or GPL licenses.
@@ -12,6 +15,33 @@ abstract class BaseJsonRpcConnection internal constructor(val endPoint: String)
 
     abstract suspend fun <T> post(postBody: String, decodeJson: (String) -> T): T
 
+    /**
+     * レスポンスをStringに変換せず、ストリームのままデコードする。
+     * 大きなレスポンス(getYPChannels, getLogなど)用。
+     * decodeStreamはブロックしてもよいスレッドで呼ばれる。
+     * */
+    open suspend fun <T> postForStream(postBody: String, decodeStream: (InputStream) -> T): T {
+        return post(postBody) {
+            decodeStream(it.byteInputStream())
+        }
+    }
+
+    /**
+     * [org.peercast.core.lib.PeerCastRpcClient]から呼ばれる。
+     * 文字列に戻す前のリクエストを見たい場合にオーバーライドする。
+     * @param request 単一のリクエスト(JsonObject)、またはバッチ(JsonArray)
+     * */
+    internal open suspend fun <T> post(request: JsonElement, decodeJson: (String) -> T): T {
+        return post(request.toString(), decodeJson)
+    }
+
+    internal open suspend fun <T> postForStream(
+        request: JsonElement,
+        decodeStream: (InputStream) -> T,
+    ): T {
+        return postForStream(request.toString(), decodeStream)
+    }
+
     override fun hashCode(): Int {
         return javaClass.hashCode() * 31 + endPoint.hashCode()
     }
@@ -3,11 +3,20 @@ package org.peercast.core.lib.internal
 import android.util.Log
 import io.ktor.client.HttpClient
 import io.ktor.client.engine.android.Android
+import io.ktor.client.engine.okhttp.OkHttp
 import io.ktor.client.features.logging.LogLevel
 import io.ktor.client.features.logging.Logger
 import io.ktor.client.features.logging.Logging
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.ConnectionPool
+import okhttp3.EventListener
 import org.peercast.core.lib.BuildConfig
 import java.net.Proxy
+import java.util.Collections
+import java.util.WeakHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 internal val ktorHttpClient = HttpClient(Android) {
     expectSuccess = false
@@ -24,10 +33,63 @@ internal val ktorHttpClient = HttpClient(Android) {
     }
 }
 
+/**
+ * 端末内のPeerCast (127.0.0.1) 専用。
+ * 少数のkeep-aliveソケットを使い回す。
+ * */
+internal val localKtorHttpClient = HttpClient(OkHttp) {
+    expectSuccess = false
+    engine {
+        config {
+            connectTimeout(10, TimeUnit.SECONDS)
+            readTimeout(10, TimeUnit.SECONDS)
+            proxy(Proxy.NO_PROXY)
+            retryOnConnectionFailure(true)
+            connectionPool(
+                ConnectionPool(LOCAL_MAX_IDLE_CONNECTIONS, LOCAL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)
+            )
+            eventListener(LocalConnectionCounter)
+        }
+    }
+    if (BuildConfig.DEBUG) {
+        install(Logging) {
+            logger = LogcatLogger
+            level = LogLevel.HEADERS
+        }
+    }
+}
+
+private const val LOCAL_MAX_IDLE_CONNECTIONS = 2
+private const val LOCAL_KEEP_ALIVE_SECONDS = 60L
+
+/**
+ * ソケットの新規接続と再利用の回数
+ *
+ * connectStartは失敗した経路の試行でも呼ばれるので数えない。
+ * 取得した接続が初めて見るものなら新規とする。
+ * */
+internal object LocalConnectionCounter : EventListener() {
+    /**接続を取得した回数 (新規 + 再利用)*/
+    val acquired = AtomicLong()
+
+    /**新しくソケットを開いた回数*/
+    val connected = AtomicLong()
+
+    //プールから捨てられた接続はGCで消える
+    private val seen = Collections.synchronizedSet(
+        Collections.newSetFromMap(WeakHashMap<Connection, Boolean>())
+    )
+
+    override fun connectionAcquired(call: Call, connection: Connection) {
+        acquired.incrementAndGet()
+        if (seen.add(connection))
+            connected.incrementAndGet()
+    }
+}
+
 private object LogcatLogger : Logger {
     private const val TAG = "LibPeerCast"
     override fun log(message: String) {
         Log.d(TAG, message)
     }
 }
-
@@ -1,25 +1,27 @@
 package org.peercast.core.lib.internal
 
 import kotlinx.serialization.SerializationException
-import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.json.Json
 import org.peercast.core.lib.rpc.ChannelInfo
 
 object NotificationUtils {
+    //通知のたびに呼ばれるので、設定とシリアライザーは使い回す
+    private val format = Json {
+        isLenient = true
+        ignoreUnknownKeys = true
+        coerceInputValues = true
+    }
+
+    private val channelInfoSerializer = ChannelInfo.serializer()
 
     /**
      * PeerCastService.notifyChannelで使用
      * */
     fun jsonToChannelInfo(json: String): ChannelInfo? {
-        val format = Json {
-            isLenient = true
-            ignoreUnknownKeys = true
-            coerceInputValues = true
-        }
         return try {
-            format.decodeFromString<ChannelInfo>(json)
+            format.decodeFromString(channelInfoSerializer, json)
         } catch (e: SerializationException) {
             null
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,28 @@
+package org.peercast.core.lib.internal
+
+import android.os.Parcelable
+import kotlinx.parcelize.Parcelize
+import org.peercast.core.lib.rpc.ChannelInfo
+
+/**
+ * INotificationCallback.onNotifyBatchで、まとめて送られる通知の1件。
+ * @param kind [KIND_MESSAGE]、[KIND_CHANNEL]、または[KIND_READY]
+ * @param notifyType NotifyMessageType、またはNotifyChannelTypeのnativeValue
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+@Parcelize
+data class NotifyEvent(
+    val kind: Int,
+    val notifyType: Int,
+    val channelId: String? = null,
+    val channelInfo: ChannelInfo? = null,
+    val message: String? = null,
+) : Parcelable {
+    companion object {
+        const val KIND_MESSAGE = 0
+        const val KIND_CHANNEL = 1
+
+        /**PeerCastが起動し、RPCを受け付けられるようになった。(v5)*/
+        const val KIND_READY = 2
+    }
+}
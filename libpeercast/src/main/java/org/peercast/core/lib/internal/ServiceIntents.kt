@@ -15,6 +15,12 @@ object ServiceIntents {
     /**"org.peercast.core.PeerCastService4"*/
     const val ACT_PEERCAST_SERVICE4 = "org.peercast.core.PeerCastService4"
 
+    /**
+     * IPeerCastService.getApiVersionが返す値
+     * 5: callRpc, registerNotificationCallback5 (onNotifyChannel5, onNotifyBatch, KIND_READY)
+     * */
+    const val SERVICE_API_VERSION = 5
+
     /**バージョン4*/
     val SERVICE4_INTENT = Intent(ACT_PEERCAST_SERVICE4).also {
         it.component = ComponentName(
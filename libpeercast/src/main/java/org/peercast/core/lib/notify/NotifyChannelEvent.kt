@@ -0,0 +1,13 @@
+package org.peercast.core.lib.notify
+
+import org.peercast.core.lib.rpc.ChannelInfo
+
+/**
+ * チャンネルの開始、更新、停止の通知
+ * @see org.peercast.core.lib.PeerCastController.channelNotifications
+ */
+data class NotifyChannelEvent(
+    val type: NotifyChannelType,
+    val channelId: String,
+    val channelInfo: ChannelInfo,
+)
@@ -0,0 +1,49 @@
+package org.peercast.core.lib.rpc.io
+
+import android.os.ParcelFileDescriptor
+import android.os.RemoteException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import org.peercast.core.IPeerCastService
+import org.peercast.core.lib.internal.BaseJsonRpcConnection
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * 端末内のPeerCastへ、HTTPを経由せずBinderでRPCを実行する。
+ * サービスが callRpc に対応していない(旧バージョン)場合は fallback で接続する。
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+internal class BinderJsonRpcConnection(
+    private val service: IPeerCastService,
+    private val fallback: BaseJsonRpcConnection,
+) : BaseJsonRpcConnection(fallback.endPoint) {
+
+    override suspend fun <T> post(postBody: String, decodeJson: (String) -> T): T {
+        //未対応のサービスではnullが返る
+        val res = withContext(Dispatchers.IO) {
+            remoteCall { service.callRpc(postBody) }
+        } ?: return fallback.post(postBody, decodeJson)
+        return decodeJson(res)
+    }
+
+    override suspend fun <T> postForStream(
+        postBody: String,
+        decodeStream: (InputStream) -> T,
+    ): T {
+        val pfd = withContext(Dispatchers.IO) {
+            remoteCall { service.callRpcForStream(postBody) }
+        } ?: return fallback.postForStream(postBody, decodeStream)
+        return withContext(Dispatchers.IO) {
+            ParcelFileDescriptor.AutoCloseInputStream(pfd).use(decodeStream)
+        }
+    }
+
+    private inline fun <R> remoteCall(f: () -> R): R {
+        return try {
+            f()
+        } catch (e: RemoteException) {
+            throw IOException(e)
+        }
+    }
+}
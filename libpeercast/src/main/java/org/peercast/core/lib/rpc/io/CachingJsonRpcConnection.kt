@@ -0,0 +1,237 @@
+package org.peercast.core.lib.rpc.io
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.contentOrNull
+import kotlinx.serialization.json.jsonObject
+import org.peercast.core.lib.internal.BaseJsonRpcConnection
+import java.io.InputStream
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 読み出し専用のRPCの結果をキャッシュする。
+ *
+ * - [ttls]に含まれるメソッドだけをキャッシュする。キーはメソッド名とparams。
+ *   キャッシュするのはレスポンスの文字列で、呼び出し元ごとのdecodeJsonでデコードし直す。
+ *   (同じメソッドを別の型でデコードする呼び出し元がいても、互いの結果を受け取らない)
+ *   デコードに失敗したものはキャッシュしない。(RPCのエラーは、decodeJsonで例外にすること)
+ * - 同じリクエストが実行中なら、その結果を待つ。実行していた側がキャンセルされたら、待っていた側がやり直す。
+ * - [mutatingMethods]に含まれるメソッド(setSettings, stopChannel, bumpChannelなど)を実行すると
+ *   キャッシュを破棄する。バッチでは、どれか1つでも含まれていれば破棄する。
+ * - どちらにも含まれないメソッド(getChannelConnections, getLogなど)は、そのまま実行する。
+ *
+ * @param ttls メソッド名とキャッシュの有効期間(ミリ秒)
+ * @param mutatingMethods 更新系のメソッド名
+ * @param clock 現在時刻(ミリ秒)
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+class CachingJsonRpcConnection(
+    private val delegate: BaseJsonRpcConnection,
+    private val ttls: Map<String, Long> = DEFAULT_TTLS,
+    private val mutatingMethods: Set<String> = MUTATING_METHODS,
+    private val clock: () -> Long = { System.nanoTime() / 1_000_000 },
+) : BaseJsonRpcConnection(delegate.endPoint) {
+
+    private class Entry(val response: String, val expiresAt: Long)
+
+    private val lock = Any()
+    private val cache = HashMap<String, Entry>()
+    private val inFlight = HashMap<String, CompletableDeferred<String>>()
+
+    //invalidate()のたびに増える。実行中に破棄されたリクエストの結果はキャッシュしない。
+    private var generation = 0L
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val coalesced = AtomicLong()
+
+    /**キャッシュから返した回数*/
+    val hitCount: Long get() = hits.get()
+
+    /**キャッシュになく、実際にリクエストした回数*/
+    val missCount: Long get() = misses.get()
+
+    /**実行中の同じリクエストの結果を待った回数*/
+    val coalescedCount: Long get() = coalesced.get()
+
+    override suspend fun <T> post(postBody: String, decodeJson: (String) -> T): T {
+        return post(format.parseToJsonElement(postBody), decodeJson)
+    }
+
+    override suspend fun <T> postForStream(
+        postBody: String,
+        decodeStream: (InputStream) -> T,
+    ): T {
+        return postForStream(format.parseToJsonElement(postBody), decodeStream)
+    }
+
+    //PeerCastRpcClientからは、文字列をパースし直さずに済む
+    override suspend fun <T> post(request: JsonElement, decodeJson: (String) -> T): T {
+        return execute(
+            request,
+            { delegate.post(request, decodeJson) },
+            { delegate.post(request) { it } },
+            decodeJson
+        )
+    }
+
+    //キャッシュするものは、文字列として読んでからデコードする
+    override suspend fun <T> postForStream(
+        request: JsonElement,
+        decodeStream: (InputStream) -> T,
+    ): T {
+        return execute(
+            request,
+            { delegate.postForStream(request, decodeStream) },
+            { delegate.postForStream(request) { it.reader().readText() } },
+            { decodeStream(it.byteInputStream()) }
+        )
+    }
+
+    /**キャッシュをすべて破棄する。*/
+    fun invalidate() {
+        synchronized(lock) {
+            generation++
+            cache.clear()
+        }
+    }
+
+    /**
+     * @param send キャッシュしない場合に、そのまま実行する
+     * @param fetch キャッシュする場合に、レスポンスの文字列を取得する
+     * @param decode [fetch]の結果やキャッシュを、呼び出し元の型にデコードする
+     */
+    private suspend fun <T> execute(
+        request: JsonElement,
+        send: suspend () -> T,
+        fetch: suspend () -> String,
+        decode: (String) -> T,
+    ): T {
+        val method = (request as? JsonObject)?.method
+        val ttl = method?.let { ttls[it] }
+        if (ttl == null) {
+            val isMutating = when (request) {
+                is JsonObject -> method in mutatingMethods
+                //バッチは、どれか1つでも更新系なら
+                is JsonArray -> request.any { (it as? JsonObject)?.method in mutatingMethods }
+                else -> false
+            }
+            if (!isMutating)
+                return send()
+            invalidate()
+            return try {
+                send()
+            } finally {
+                invalidate()
+            }
+        }
+
+        //"id"を除いたもの
+        val key = "$method${request.jsonObject["params"]}"
+        while (true) {
+            val now = clock()
+            val gen: Long
+            val cached: String?
+            val waiting: CompletableDeferred<String>?
+            val deferred: CompletableDeferred<String>
+            synchronized(lock) {
+                cached = cache[key]?.let { e ->
+                    if (now < e.expiresAt)
+                        return@let e.response
+                    cache.remove(key)
+                    null
+                }
+                gen = generation
+                waiting = inFlight[key]
+                deferred = waiting ?: CompletableDeferred<String>().also {
+                    if (cached == null)
+                        inFlight[key] = it
+                }
+            }
+
+            if (cached != null) {
+                hits.incrementAndGet()
+                return decode(cached)
+            }
+
+            if (waiting != null) {
+                coalesced.incrementAndGet()
+                val response = try {
+                    waiting.await()
+                } catch (e: LeaderCancelledException) {
+                    //先に実行していた側がキャンセルされた。やり直す
+                    continue
+                }
+                return decode(response)
+            }
+
+            misses.incrementAndGet()
+            val response = try {
+                fetch()
+            } catch (t: Throwable) {
+                synchronized(lock) {
+                    inFlight.remove(key)
+                }
+                //呼び出し元のキャンセルを、別のスコープで待っている側に伝えない
+                deferred.completeExceptionally(
+                    if (t is CancellationException) LeaderCancelledException() else t
+                )
+                throw t
+            }
+            //待っている側には、デコードできたかどうかに関わらず渡す
+            val value = try {
+                decode(response)
+            } catch (t: Throwable) {
+                synchronized(lock) {
+                    inFlight.remove(key)
+                }
+                deferred.complete(response)
+                throw t
+            }
+            synchronized(lock) {
+                inFlight.remove(key)
+                if (gen == generation)
+                    cache[key] = Entry(response, clock() + ttl)
+            }
+            deferred.complete(response)
+            return value
+        }
+    }
+
+    private class LeaderCancelledException : Exception()
+
+    companion object {
+        val DEFAULT_TTLS = mapOf(
+            "getStatus" to 2_000L,
+            "getChannels" to 1_000L,
+            "getSettings" to 30_000L,
+            "getLogSettings" to 30_000L,
+            "getVersionInfo" to 60 * 60_000L,
+            "getYellowPages" to 30_000L,
+            "getYPChannels" to 30_000L,
+        )
+
+        /**実行するとキャッシュを破棄するメソッド*/
+        val MUTATING_METHODS = setOf(
+            "bumpChannel",
+            "stopChannel",
+            "stopChannelConnection",
+            "setSettings",
+            "setLogSettings",
+            "clearLog",
+            "addYellowPage",
+            "removeYellowPage",
+            "updateYPChannels",
+        )
+
+        private val format = Json { isLenient = true }
+
+        private val JsonObject.method: String?
+            get() = (get("method") as? JsonPrimitive)?.contentOrNull
+    }
+}
@@ -0,0 +1,16 @@
+package org.peercast.core.lib.rpc.io
+
+/**
+ * 端末内のPeerCastへのHTTP接続の再利用状況
+ * @see JsonRpcConnection.localConnectionStats
+ * @licenses Dual licensed under the MIT or GPL licenses.
+ */
+data class ConnectionStats internal constructor(
+    /**接続を取得した回数 (新規 + 再利用)*/
+    val acquired: Long,
+    /**新しくソケットを開いた回数*/
+    val connected: Long,
+) {
+    /**keep-aliveで再利用された回数*/
+    val reused: Long get() = acquired - connected
+}
@@ -1,15 +1,24 @@
 package org.peercast.core.lib.rpc.io
 
+import io.ktor.client.request.HttpRequestBuilder
 import io.ktor.client.request.header
 import io.ktor.client.request.post
 import io.ktor.client.request.url
 import io.ktor.client.statement.HttpResponse
+import io.ktor.client.statement.HttpStatement
 import io.ktor.client.statement.readText
 import io.ktor.http.ContentType
 import io.ktor.http.contentType
+import io.ktor.utils.io.jvm.javaio.toInputStream
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import org.peercast.core.lib.BuildConfig
 import org.peercast.core.lib.internal.BaseJsonRpcConnection
+import org.peercast.core.lib.internal.LocalConnectionCounter
 import org.peercast.core.lib.internal.ktorHttpClient
+import org.peercast.core.lib.internal.localKtorHttpClient
+import java.io.InputStream
+import java.net.URI
 
 /**
  * PeerCast-YT または PeerCastStation へのRPC接続
@@ -20,14 +29,46 @@ class JsonRpcConnection : BaseJsonRpcConnection {
     constructor(endPoint: String) : super(endPoint)
     constructor(host: String = "127.0.0.1", port: Int) : super(host, port)
 
+    //端末内のPeerCastならkeep-aliveのプールを使う
+    private val httpClient = when (runCatching { URI(endPoint).host }.getOrNull()) {
+        "127.0.0.1", "localhost" -> localKtorHttpClient
+        else -> ktorHttpClient
+    }
+
+    private fun HttpRequestBuilder.setUp(postBody: String) {
+        url(endPoint)
+        contentType(ContentType.Application.Json)
+        header("User-Agent", "LibPeerCast-${BuildConfig.LIB_VERSION}")
+        header("X-Requested-With", "XMLHttpRequest")
+        body = postBody
+    }
+
     override suspend fun <T> post(postBody: String, decodeJson: (String) -> T): T {
-        val res = ktorHttpClient.post<HttpResponse> {
-            url(endPoint)
-            contentType(ContentType.Application.Json)
-            header("User-Agent", "LibPeerCast-${BuildConfig.LIB_VERSION}")
-            header("X-Requested-With", "XMLHttpRequest")
-            body = postBody
+        val res = httpClient.post<HttpResponse> {
+            setUp(postBody)
         }
         return decodeJson(res.readText())
     }
+
+    override suspend fun <T> postForStream(
+        postBody: String,
+        decodeStream: (InputStream) -> T,
+    ): T {
+        return httpClient.post<HttpStatement> {
+            setUp(postBody)
+        }.execute { res ->
+            withContext(Dispatchers.IO) {
+                res.content.toInputStream().use(decodeStream)
+            }
+        }
+    }
+
+    companion object {
+        /**端末内のPeerCastへの接続の再利用状況*/
+        val localConnectionStats: ConnectionStats
+            get() = ConnectionStats(
+                LocalConnectionCounter.acquired.get(),
+                LocalConnectionCounter.connected.get()
+            )
+    }
 }
@@ -1,11 +1,14 @@
 package org.peercast.core.lib.rpc.io
 
+import kotlinx.serialization.json.JsonArray
 import kotlinx.serialization.json.JsonArrayBuilder
 import kotlinx.serialization.json.JsonElement
 import kotlinx.serialization.json.JsonObject
 import kotlinx.serialization.json.JsonObjectBuilder
 import kotlinx.serialization.json.add
 import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.int
+import kotlinx.serialization.json.jsonPrimitive
 import kotlinx.serialization.json.put
 import kotlinx.serialization.json.putJsonArray
 import kotlinx.serialization.json.putJsonObject
@@ -66,4 +69,9 @@ internal fun buildRpcRequestArrayParams(
     }
 }
 
+/**JSON-RPC 2.0 のバッチリクエスト。各要素は[baseRpcBuildRequest]で作成されたもの*/
+internal fun buildRpcBatchRequest(requests: List<JsonObject>) = JsonArray(requests)
 
+/**リクエストの"id"*/
+internal val JsonObject.rpcId: Int
+    get() = getValue("id").jsonPrimitive.int
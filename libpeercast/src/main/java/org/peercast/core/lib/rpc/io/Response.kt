@@ -1,9 +1,17 @@
 package org.peercast.core.lib.rpc.io
 
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.KSerializer
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.SerializationException
 import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.decodeFromStream
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.intOrNull
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import java.io.InputStream
 
 /**
  * JsonRpcのレスポンス
@@ -26,6 +34,26 @@ internal inline fun <reified T> decodeRpcResponse(s: String): T {
     }
 }
 
+/**Stringを経由せず、ストリームから直接デコードする*/
+@OptIn(ExperimentalSerializationApi::class)
+internal inline fun <reified T> decodeRpcResponse(stream: InputStream): T {
+    return try {
+        val res = format.decodeFromStream<JsonRpcResponse<T>>(stream)
+        res.getResultOrThrow()
+    } catch (e: SerializationException) {
+        throw JsonRpcException("decodeFromStream failed", -10000, 0, e)
+    }
+}
+
+internal fun <T> decodeRpcResponse(s: String, serializer: KSerializer<T>): T {
+    return try {
+        val res = format.decodeFromString(JsonRpcResponse.serializer(serializer), s)
+        res.getResultOrThrow()
+    } catch (e: SerializationException) {
+        throw JsonRpcException("decodeFromString failed", -10000, 0, e)
+    }
+}
+
 internal fun decodeRpcResponseOnlyErrorCheck(s: String) {
     try {
         val res = format.decodeFromString<JsonRpcResponse<String>>(s)
@@ -35,9 +63,44 @@ internal fun decodeRpcResponseOnlyErrorCheck(s: String) {
     }
 }
 
+/**
+ * バッチリクエストのレスポンスをデコードする。
+ * @param entries リクエストのidと結果のシリアライザー
+ * @return リクエスト順の結果。レスポンスが配列でない(バッチ非対応)場合はnull
+ * */
+internal fun decodeRpcBatchResponse(
+    s: String,
+    entries: List<Pair<Int, KSerializer<*>>>,
+): List<Result<Any?>>? {
+    val responses = try {
+        when (val e = format.parseToJsonElement(s)) {
+            is JsonArray -> e.associateBy { it.jsonObject["id"]?.jsonPrimitive?.intOrNull }
+            else -> return null
+        }
+    } catch (e: IllegalArgumentException) {
+        //SerializationException, または要素がオブジェクトでない
+        throw JsonRpcException("decodeFromString failed", -10000, 0, e)
+    }
+
+    return entries.map { (id, rs) ->
+        @Suppress("UNCHECKED_CAST")
+        val serializer = rs as KSerializer<Any?>
+        kotlin.runCatching {
+            val element = responses[id] ?: throw JsonRpcException("no response", -10000, id)
+            try {
+                format.decodeFromJsonElement(JsonRpcResponse.serializer(serializer), element)
+                    .getResultOrThrow()
+            } catch (e: SerializationException) {
+                throw JsonRpcException("decodeFromJsonElement failed", -10000, id, e)
+            }
+        }
+    }
+}
+
 @Serializable
 internal class JsonRpcResponse<T>(
     val jsonrpc: String,
+    val id: Int? = null,
     private val error: Error? = null,
     private val result: T? = null,
 ) {
@@ -0,0 +1,99 @@
+package org.peercast.core.lib
+
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import org.peercast.core.lib.internal.BaseJsonRpcConnection
+import org.peercast.core.lib.rpc.io.CachingJsonRpcConnection
+import org.peercast.core.lib.rpc.io.JsonRpcException
+
+class PeerCastRpcClientTest {
+
+    /**
+     * getYellowPagesには空の一覧を、それ以外にはMethod not foundを返す。
+     * @param supportsBatch falseならバッチにInvalid Requestを返す
+     */
+    private class FakeConnection(private val supportsBatch: Boolean) :
+        BaseJsonRpcConnection("fake:") {
+        val bodies = ArrayList<String>()
+
+        override suspend fun <T> post(postBody: String, decodeJson: (String) -> T): T {
+            bodies.add(postBody)
+            val res = when (val req = Json.parseToJsonElement(postBody)) {
+                is JsonArray -> if (supportsBatch) {
+                    req.joinToString(",", "[", "]") { respond(it.jsonObject) }
+                } else {
+                    """{"jsonrpc":"2.0","error":{"code":-32600,"message":"Invalid Request"},"id":null}"""
+                }
+                else -> respond(req.jsonObject)
+            }
+            return decodeJson(res)
+        }
+
+        private fun respond(req: JsonObject): String {
+            val id = req["id"]
+            return when (req["method"]?.jsonPrimitive?.content) {
+                "getYellowPages" -> """{"jsonrpc":"2.0","result":[],"id":$id}"""
+                else -> """{"jsonrpc":"2.0","error":{"code":-32601,"message":"Method not found"},"id":$id}"""
+            }
+        }
+    }
+
+    @Test
+    fun batch() = runBlocking {
+        val fake = FakeConnection(supportsBatch = true)
+        lateinit var yp: PeerCastRpcBatch.Entry<*>
+        lateinit var status: PeerCastRpcBatch.Entry<*>
+        val results = PeerCastRpcClient(fake).batch {
+            yp = getYellowPages()
+            status = getStatus()
+        }
+
+        assertEquals(1, fake.bodies.size)
+        assertEquals(emptyList<Any>(), results[yp])
+        assertNull(results.getOrNull(status))
+        try {
+            results[status]
+            fail()
+        } catch (e: JsonRpcException) {
+            assertEquals(-32601, e.code)
+        }
+    }
+
+    @Test
+    fun fallbackToSingleRequests() = runBlocking {
+        val fake = FakeConnection(supportsBatch = false)
+        lateinit var yp: PeerCastRpcBatch.Entry<*>
+        lateinit var status: PeerCastRpcBatch.Entry<*>
+        val results = PeerCastRpcClient(fake).batch {
+            yp = getYellowPages()
+            status = getStatus()
+        }
+
+        //バッチ1回と、1つずつ2回
+        assertEquals(3, fake.bodies.size)
+        assertEquals(emptyList<Any>(), results[yp])
+        assertTrue(results[status.index].isFailure)
+    }
+
+    /**1つずつ実行した結果が、キャッシュを通した通常のコマンドに混ざらない*/
+    @Test
+    fun fallbackThroughCache() = runBlocking {
+        val conn = CachingJsonRpcConnection(FakeConnection(supportsBatch = false))
+        val client = PeerCastRpcClient(conn)
+        client.batch {
+            getYellowPages()
+        }
+
+        assertEquals(emptyList<Any>(), client.getYellowPages())
+        assertEquals(1, conn.hitCount)
+    }
+}
@@ -0,0 +1,225 @@
+package org.peercast.core.lib.rpc.io
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+import org.peercast.core.lib.internal.BaseJsonRpcConnection
+import java.io.IOException
+
+class CachingJsonRpcConnectionTest {
+
+    /**"result"に何回目のリクエストかを返す*/
+    private class FakeConnection : BaseJsonRpcConnection("fake:") {
+        val methods = ArrayList<String>()
+        var gate: CompletableDeferred<Unit>? = null
+        var error: IOException? = null
+
+        /**nullでなければ、これを返す*/
+        var response: String? = null
+
+        override suspend fun <T> post(postBody: String, decodeJson: (String) -> T): T {
+            methods.add(Regex(""""method":"(\w+)"""").find(postBody)!!.groupValues[1])
+            gate?.await()
+            error?.let { throw it }
+            return decodeJson(
+                response ?: """{"jsonrpc":"2.0","result":${methods.size},"id":1}"""
+            )
+        }
+    }
+
+    private var now = 0L
+    private val fake = FakeConnection()
+    private val conn = CachingJsonRpcConnection(
+        fake,
+        mapOf("getStatus" to 1_000L, "getChannelStatus" to 1_000L),
+    ) { now }
+
+    private suspend fun getStatus(): Int {
+        return conn.post(buildRpcRequest("getStatus").toString()) {
+            decodeRpcResponse(it)
+        }
+    }
+
+    private suspend fun getChannelStatus(channelId: String): Int {
+        return conn.post(buildRpcRequest("getChannelStatus", channelId).toString()) {
+            decodeRpcResponse(it)
+        }
+    }
+
+    //PeerCastRpcClient.batchのように、同じメソッドを別の型でデコードする
+    private suspend fun getStatusAsResults(): List<Result<Int>> {
+        return conn.post(buildRpcRequest("getStatus")) {
+            listOf(runCatching { decodeRpcResponse<Int>(it) })
+        }
+    }
+
+    private suspend fun stopChannel(channelId: String) {
+        conn.post(buildRpcRequest("stopChannel", channelId).toString()) {
+            decodeRpcResponseOnlyErrorCheck(it)
+        }
+    }
+
+    @Test
+    fun hitWithinTtl() = runBlocking {
+        assertEquals(1, getStatus())
+        now += 999
+        assertEquals(1, getStatus())
+
+        assertEquals(listOf("getStatus"), fake.methods)
+        assertEquals(1, conn.hitCount)
+        assertEquals(1, conn.missCount)
+    }
+
+    @Test
+    fun expiredAfterTtl() = runBlocking {
+        assertEquals(1, getStatus())
+        now += 1_000
+        assertEquals(2, getStatus())
+
+        assertEquals(0, conn.hitCount)
+        assertEquals(2, conn.missCount)
+    }
+
+    @Test
+    fun keyContainsParams() = runBlocking {
+        assertEquals(1, getChannelStatus("a"))
+        assertEquals(2, getChannelStatus("b"))
+        assertEquals(1, getChannelStatus("a"))
+        assertEquals(2, getChannelStatus("b"))
+
+        assertEquals(2, fake.methods.size)
+    }
+
+    @Test
+    fun uncachedMethodPassesThrough() = runBlocking {
+        repeat(2) {
+            conn.post(buildRpcRequest("getChannelConnections", "a").toString()) {
+                decodeRpcResponse<Int>(it)
+            }
+        }
+        assertEquals(2, fake.methods.size)
+        assertEquals(0, conn.hitCount)
+    }
+
+    @Test
+    fun mutationInvalidates() = runBlocking {
+        assertEquals(1, getStatus())
+        stopChannel("a")
+        assertEquals(3, getStatus())
+
+        assertEquals(listOf("getStatus", "stopChannel", "getStatus"), fake.methods)
+    }
+
+    @Test
+    fun readOnlyMethodDoesNotInvalidate() = runBlocking {
+        assertEquals(1, getStatus())
+        conn.post(buildRpcRequest("getChannelConnections", "a")) {
+            decodeRpcResponse<Int>(it)
+        }
+        assertEquals(1, getStatus())
+
+        assertEquals(listOf("getStatus", "getChannelConnections"), fake.methods)
+    }
+
+    @Test
+    fun batchWithMutationInvalidates() = runBlocking {
+        assertEquals(1, getStatus())
+        val batch = buildRpcBatchRequest(
+            listOf(buildRpcRequest("getChannels"), buildRpcRequest("stopChannel", "a"))
+        )
+        conn.post(batch) { }
+        assertEquals(3, getStatus())
+    }
+
+    @Test
+    fun coalesceInFlightRequests() = runBlocking {
+        val gate = CompletableDeferred<Unit>()
+        fake.gate = gate
+
+        val r1 = async { getStatus() }
+        val r2 = async { getStatus() }
+        yield()
+        gate.complete(Unit)
+
+        assertEquals(1, r1.await())
+        assertEquals(1, r2.await())
+        assertEquals(1, fake.methods.size)
+        assertEquals(1, conn.coalescedCount)
+    }
+
+    @Test
+    fun waiterRetriesWhenLeaderIsCancelled() = runBlocking {
+        val gate = CompletableDeferred<Unit>()
+        fake.gate = gate
+
+        val r1 = async { getStatus() }
+        yield()
+        val r2 = async { getStatus() }
+        yield()
+        r1.cancel()
+        yield()
+        gate.complete(Unit)
+
+        assertEquals(2, r2.await())
+        assertEquals(2, fake.methods.size)
+    }
+
+    @Test
+    fun errorIsNotCached() = runBlocking {
+        fake.error = IOException("test")
+        try {
+            getStatus()
+            fail()
+        } catch (e: IOException) {
+        }
+
+        fake.error = null
+        assertEquals(2, getStatus())
+        assertEquals(2, conn.missCount)
+    }
+
+    @Test
+    fun eachCallerDecodesCachedResponse() = runBlocking {
+        assertEquals(listOf(Result.success(1)), getStatusAsResults())
+        assertEquals(1, getStatus())
+        assertEquals(listOf(Result.success(1)), getStatusAsResults())
+
+        assertEquals(1, fake.methods.size)
+        assertEquals(2, conn.hitCount)
+    }
+
+    @Test
+    fun eachWaiterDecodesInFlightResponse() = runBlocking {
+        val gate = CompletableDeferred<Unit>()
+        fake.gate = gate
+
+        val r1 = async { getStatus() }
+        yield()
+        val r2 = async { getStatusAsResults() }
+        yield()
+        gate.complete(Unit)
+
+        assertEquals(1, r1.await())
+        assertEquals(listOf(Result.success(1)), r2.await())
+        assertEquals(1, fake.methods.size)
+        assertEquals(1, conn.coalescedCount)
+    }
+
+    @Test
+    fun rpcErrorIsNotCached() = runBlocking {
+        fake.response = """{"jsonrpc":"2.0","error":{"code":-1,"message":"test"},"id":1}"""
+        try {
+            getStatus()
+            fail()
+        } catch (e: JsonRpcException) {
+        }
+
+        fake.response = null
+        assertEquals(listOf(Result.success(2)), getStatusAsResults())
+        assertEquals(0, conn.hitCount)
+    }
+}
@@ -29,6 +29,7 @@ import org.koin.android.ext.android.inject
 import org.koin.androidx.viewmodel.ext.android.sharedViewModel
 import org.peercast.core.common.PeerCastConfig
 import org.peercast.core.ui.databinding.WebViewFragmentBinding
+import org.peercast.core.ui.yt.AssetRequestHandler
 import org.peercast.core.ui.yt.CgiRequestHandler
 
 
@@ -49,6 +50,7 @@ class WebViewFragment : Fragment(), SearchView.OnQueryTextListener {
         }
     }
     private val progress = MutableStateFlow(0)
+    private lateinit var assetHandler: AssetRequestHandler
 
     private val wvClient = object : WebViewClientCompat() {
         private val requestHandler = CgiRequestHandler()
@@ -57,7 +59,8 @@ class WebViewFragment : Fragment(), SearchView.OnQueryTextListener {
             view: WebView,
             request: WebResourceRequest,
         ): WebResourceResponse? {
-            return requestHandler.shouldInterceptRequest(request)
+            return assetHandler.shouldInterceptRequest(request)
+                ?: requestHandler.shouldInterceptRequest(request)
         }
 
         private val RE_LOCAL_HOST = """(localhost|127\.0\.0\.1)""".toRegex()
@@ -136,6 +139,7 @@ class WebViewFragment : Fragment(), SearchView.OnQueryTextListener {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         webViewPrefs = requireContext().getSharedPreferences("yt-webview", Context.MODE_PRIVATE)
+        assetHandler = AssetRequestHandler(requireContext().applicationContext.assets)
         setHasOptionsMenu(true)
     }
 
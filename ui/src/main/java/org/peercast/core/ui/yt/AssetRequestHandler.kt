@@ -0,0 +1,52 @@
+package org.peercast.core.ui.yt
+
+import android.content.res.AssetManager
+import android.webkit.MimeTypeMap
+import android.webkit.WebResourceRequest
+import android.webkit.WebResourceResponse
+import org.peercast.core.common.AssetZip
+import timber.log.Timber
+
+/**
+ * YTの静的なファイル(/assets/以下)を、PeerCastのHTTPサーバーを通さずにAPKから直接返す。
+ * テンプレートを含むhtmlはこれまでどおりPeerCastから読む。
+ */
+class AssetRequestHandler(am: AssetManager) {
+    //無圧縮で格納されていなければnull。その場合は何もしない
+    private val zip by lazy { AssetZip.open(am, ASSET_ZIP) }
+
+    fun shouldInterceptRequest(request: WebResourceRequest): WebResourceResponse? {
+        val u = request.url
+        val path = u.path
+        if (request.method != "GET" || u.host !in LOCAL_HOSTS || path == null ||
+            !path.startsWith("/assets/") || ".." in path
+        )
+            return null
+
+        val z = zip ?: return null
+        val e = z[path.substring(1)] ?: return null
+        Timber.d("$u -> $ASSET_ZIP:${e.name}")
+
+        return WebResourceResponse(
+            mimeTypeOf(e.name), null, 200, "OK",
+            mapOf("Cache-Control" to "no-cache"),
+            z.open(e)
+        )
+    }
+
+    companion object {
+        private const val ASSET_ZIP = "peca-yt.zip"
+
+        private val LOCAL_HOSTS = listOf("localhost", "127.0.0.1")
+
+        private fun mimeTypeOf(name: String): String {
+            return when (val ext = name.substringAfterLast('.', "").lowercase()) {
+                "js" -> "application/javascript"
+                "css" -> "text/css"
+                "svg" -> "image/svg+xml"
+                else -> MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext)
+                    ?: "application/octet-stream"
+            }
+        }
+    }
+}